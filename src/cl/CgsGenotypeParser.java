@@ -12,7 +12,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.HashMap;
@@ -92,7 +91,7 @@ public class CgsGenotypeParser extends CommonParser {
   protected void parseData() throws PgkbException {
 
     Session session = null;
-    try (FileReader fr = new FileReader(getDataFile()); BufferedReader br = new BufferedReader(fr)) {
+    try (BufferedReader br = openDataReader()) {
       session = HibernateUtils.getSession();
       Query sampleQuery = session.createQuery("from Sample s where s.subjectId=:id");
 
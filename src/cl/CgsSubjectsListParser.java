@@ -14,7 +14,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.List;
@@ -49,7 +48,7 @@ public class CgsSubjectsListParser extends CommonParser {
   @Override
   protected void parseData() throws PgkbException {
     Session session = null;
-    try (BufferedReader br = new BufferedReader(new FileReader(getDataFile()))) {
+    try (BufferedReader br = openDataReader()) {
       Set<String> subjectIdSet = br.lines()
           .map(StringUtils::stripToNull)
           .filter(i -> i != null)
@@ -68,7 +67,8 @@ public class CgsSubjectsListParser extends CommonParser {
           else {
             sample.addProperty(Property.CGS, Value.No.getShortName());
           }
-          SubjectIterator.postProcess(sample);
+          // only derive what depends on the properties that actually changed
+          SubjectIterator.postProcess(sample, sample.getChangedProperties());
         }
       }
 
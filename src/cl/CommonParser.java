@@ -3,7 +3,13 @@ package cl;
 import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.util.CliHelper;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 
 /**
  * Common code for the command line parsers
@@ -12,14 +18,31 @@ import java.io.File;
  */
 abstract class CommonParser {
   private File m_dataFile;
+  private String m_data;
 
   protected abstract void parseData() throws PgkbException;
 
   abstract String getFileDescriptor();
 
+  /**
+   * Override this to add options specific to a parser to the command line
+   * @param cliHelper the {@link CliHelper} that will parse the command line
+   */
+  void addCommandLineOptions(CliHelper cliHelper) {
+  }
+
+  /**
+   * Override this to read options specific to a parser after the command line has been parsed
+   * @param cliHelper the {@link CliHelper} that parsed the command line
+   * @throws Exception can occur if an option has a bad value
+   */
+  void readCommandLineOptions(CliHelper cliHelper) throws Exception {
+  }
+
   void parseCommandLineArgs(String args[]) throws Exception {
     CliHelper cliHelper = new CliHelper(getClass(), false);
     cliHelper.addOption("f", "file", getFileDescriptor(), "pathToFile");
+    addCommandLineOptions(cliHelper);
 
     try {
       cliHelper.parse(args);
@@ -40,6 +63,28 @@ abstract class CommonParser {
         throw new Exception("File not found "+cliHelper.getValue("-f"));
       }
     }
+
+    readCommandLineOptions(cliHelper);
+  }
+
+  /**
+   * Reads the whole data file into memory ahead of time, so <code>parseData</code> doesn't have to wait on file IO. This
+   * can be called on a different thread, before <code>parseData</code> runs.
+   * @throws IOException if the data file can't be read
+   */
+  void readData() throws IOException {
+    m_data = new String(Files.readAllBytes(getDataFile().toPath()), Charset.defaultCharset());
+  }
+
+  /**
+   * Opens a reader over the data file, or over the data read by <code>readData</code> if it's been called
+   * @throws IOException if the data file can't be opened
+   */
+  BufferedReader openDataReader() throws IOException {
+    if (m_data != null) {
+      return new BufferedReader(new StringReader(m_data));
+    }
+    return new BufferedReader(new FileReader(getDataFile()));
   }
 
   File getDataFile() {
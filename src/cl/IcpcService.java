@@ -0,0 +1,431 @@
+package cl;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Hex;
+import org.hibernate.Session;
+import org.pharmgkb.AbstractReport;
+import org.pharmgkb.CohortFilter;
+import org.pharmgkb.CohortSnapshot;
+import org.pharmgkb.DelimitedReportWriter;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.exception.PgkbException;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.CliHelper;
+import org.pharmgkb.util.HibernateUtils;
+import org.pharmgkb.util.PropertyCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs ICPC as a long-running service so the Hibernate session factory, the {@link PropertyCatalog}, and a
+ * {@link CohortSnapshot} of all the samples only have to be loaded once instead of every time a command line utility
+ * starts. Commands are sent as HTTP requests to a port on the loopback address and answered in plain text. Parameters
+ * can be given in the query string or, for POST requests, as a form encoded body:
+ *
+ * <dl>
+ *   <dt>GET /status</dt><dd>the number of samples in the snapshot and when it was loaded</dd>
+ *   <dt>GET /sample?id=PA123</dt><dd>the properties of one sample</dd>
+ *   <dt>POST /report type=gwas,fndz&amp;dir=/path&amp;project=1&amp;format=csv&amp;gzip=true&amp;filter=Gender%3D2</dt>
+ *   <dd>writes reports from the snapshot, takes the same values as {@link ReportGeneratorCLI}</dd>
+ *   <dt>POST /ingest dir=/path&amp;incremental=true</dt><dd>loads submission templates like {@link TemplateParser}
+ *   then reloads the snapshot</dd>
+ *   <dt>POST /reload</dt><dd>reloads the snapshot, e.g. after the DB was changed by another program</dd>
+ *   <dt>POST /shutdown</dt><dd>stops the service</dd>
+ * </dl>
+ *
+ * Commands that change anything only take POST requests, so a web page can't run them by linking to the service. Each
+ * time the service starts it writes a new random token to a file only the current user can read (<code>-t</code> to
+ * choose the file, default <code>~/.icpc-service.token</code>) and every request has to send it in the
+ * {@link #TOKEN_HEADER} header. Requests without it get a 401 response and requests with the wrong method get a 405
+ * response.
+ *
+ * Commands are run one at a time on a single thread, so an ingest never runs while a report is being written from the
+ * snapshot it's about to replace.
+ *
+ * @author Ryan Whaley
+ */
+public class IcpcService {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  public static final int DEFAULT_PORT = 8765;
+  public static final String TOKEN_HEADER = "X-ICPC-Token";
+  private static final String sf_get = "GET";
+  private static final String sf_post = "POST";
+
+  private int m_port = DEFAULT_PORT;
+  private File m_tokenFile = new File(System.getProperty("user.home"), ".icpc-service.token");
+  private byte[] m_token = null;
+  private HttpServer m_server = null;
+  private CohortSnapshot m_snapshot = null;
+  private final CountDownLatch m_stopped = new CountDownLatch(1);
+
+  public static void main(String[] args) {
+    try {
+      HibernateUtils.init();
+
+      IcpcService service = new IcpcService();
+      service.parseCommandLineArgs(args);
+      service.start();
+      service.awaitShutdown();
+    }
+    catch (Exception ex) {
+      sf_logger.error("Couldn't run service", ex);
+      System.exit(1);
+    }
+    finally {
+      HibernateUtils.shutdown();
+    }
+    System.exit(0);
+  }
+
+  private void parseCommandLineArgs(String[] args) throws Exception {
+    CliHelper cliHelper = new CliHelper(getClass(), false);
+
+    cliHelper.addOption("p", "port", "loopback port to listen on, default " + DEFAULT_PORT, "port", false);
+    cliHelper.addOption("t", "token-file", "file to write the request token to, default " + m_tokenFile, "file",
+        false);
+
+    try {
+      cliHelper.parse(args);
+      if (cliHelper.isHelpRequested()) {
+        cliHelper.printHelp();
+        System.exit(1);
+      }
+    } catch (Exception ex) {
+      throw new Exception("Error parsing arguments", ex);
+    }
+
+    if (cliHelper.hasOption("-p")) {
+      setPort(cliHelper.getIntValue("-p"));
+    }
+    if (cliHelper.hasOption("-t")) {
+      setTokenFile(new File(cliHelper.getValue("-t")));
+    }
+  }
+
+  /**
+   * Warms up the property catalog and the sample snapshot then starts listening for commands
+   * @throws PgkbException if the snapshot can't be loaded
+   * @throws IOException if the port can't be opened
+   */
+  public void start() throws PgkbException, IOException {
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      PropertyCatalog.getInstance(session);
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
+    reload();
+    listen(m_snapshot);
+  }
+
+  /**
+   * Writes a new token file and starts listening for commands about the given snapshot
+   * @throws IOException if the token file can't be written or the port can't be opened
+   */
+  void listen(CohortSnapshot snapshot) throws IOException {
+    m_snapshot = snapshot;
+    writeToken();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("icpc-service-%d").build());
+    m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), m_port), 0);
+    m_server.setExecutor(executor);
+    m_server.createContext("/status", exchange -> handle(exchange, sf_get, params -> status()));
+    m_server.createContext("/sample", exchange -> handle(exchange, sf_get, this::sample));
+    m_server.createContext("/report", exchange -> handle(exchange, sf_post, this::report));
+    m_server.createContext("/ingest", exchange -> handle(exchange, sf_post, this::ingest));
+    m_server.createContext("/reload", exchange -> handle(exchange, sf_post, params -> {
+      reload();
+      return status();
+    }));
+    m_server.createContext("/shutdown", exchange -> handle(exchange, sf_post, params -> {
+      m_stopped.countDown();
+      return "Shutting down\n";
+    }));
+    m_server.start();
+    sf_logger.info("Listening on {}, token written to {}", m_server.getAddress(), m_tokenFile);
+  }
+
+  /**
+   * Makes a new random token and writes it to the token file, which is created so only the current user can read it
+   */
+  private void writeToken() throws IOException {
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    String token = Hex.encodeHexString(random);
+
+    Path path = m_tokenFile.toPath();
+    Files.deleteIfExists(path);
+    try {
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    }
+    catch (UnsupportedOperationException ex) {
+      // not a POSIX file system, take away everyone else's access instead
+      Files.createFile(path);
+      if (!(m_tokenFile.setReadable(false, false) && m_tokenFile.setReadable(true, true) &&
+          m_tokenFile.setWritable(false, false) && m_tokenFile.setWritable(true, true))) {
+        throw new IOException("Couldn't restrict access to " + m_tokenFile);
+      }
+    }
+    Files.write(path, token.getBytes(Charsets.UTF_8));
+    m_token = token.getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Waits until a shutdown command is received then stops listening
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void awaitShutdown() throws InterruptedException {
+    m_stopped.await();
+    m_server.stop(1);
+    ((ExecutorService)m_server.getExecutor()).shutdown();
+    try {
+      Files.deleteIfExists(m_tokenFile.toPath());
+    }
+    catch (IOException ex) {
+      sf_logger.warn("Couldn't delete " + m_tokenFile, ex);
+    }
+    sf_logger.info("Stopped");
+  }
+
+  /**
+   * Replaces the snapshot with all the samples currently in the DB
+   */
+  private void reload() throws PgkbException {
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      m_snapshot = CohortSnapshot.load(session);
+    }
+    catch (Exception ex) {
+      throw new PgkbException("Error loading samples", ex);
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
+  }
+
+  private String status() {
+    return "samples: " + m_snapshot.size() + "\n" +
+        "loaded: " + m_snapshot.getLoaded() + "\n" +
+        "now: " + new Date() + "\n";
+  }
+
+  private String report(Map<String,String> params) throws Exception {
+    List<String> types = Lists.newArrayList(
+        Splitter.on(',').trimResults().omitEmptyStrings().split(require(params, "type")));
+    File directory = new File(require(params, "dir"));
+    Integer project = params.containsKey("project") ? parseInt(params.get("project")) : null;
+    DelimitedReportWriter.Format format = null;
+    if (params.containsKey("format")) {
+      try {
+        format = DelimitedReportWriter.Format.valueOf(params.get("format").toUpperCase());
+      }
+      catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException("No report format found for " + params.get("format"));
+      }
+    }
+    boolean gzip = Boolean.parseBoolean(params.get("gzip"));
+    CohortFilter filter = params.containsKey("filter") ? CohortFilter.parse(params.get("filter")) : null;
+
+    List<AbstractReport> reports = Lists.newArrayList();
+    for (String type : types) {
+      AbstractReport report;
+      try {
+        report = ReportGeneratorCLI.makeReport(type, directory, project, 1);
+      }
+      catch (PgkbException ex) {
+        throw new IllegalArgumentException(ex.getMessage());
+      }
+      report.setDelimitedFormat(format, gzip);
+      report.setFilter(filter);
+      reports.add(report);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (AbstractReport report : reports) {
+      report.generate(m_snapshot.getIndex());
+      sb.append(report.getFile()).append("\n");
+    }
+    return sb.toString();
+  }
+
+  private String ingest(Map<String,String> params) throws Exception {
+    TemplateParser templateParser = new TemplateParser();
+    templateParser.setDataFile(new File(require(params, "dir")));
+    templateParser.setIncremental(Boolean.parseBoolean(params.get("incremental")));
+    try {
+      templateParser.parseData();
+    }
+    finally {
+      // even a failed load may have replaced some projects
+      reload();
+    }
+    return status();
+  }
+
+  private String sample(Map<String,String> params) {
+    String subjectId = require(params, "id");
+    Sample sample = m_snapshot.getSample(subjectId);
+    if (sample == null) {
+      throw new IllegalArgumentException("No sample found for " + subjectId);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    Map<Property,String> properties = sample.getProperties();
+    for (Property property : Property.values()) {
+      if (properties.containsKey(property)) {
+        sb.append(property.getShortName()).append("\t").append(properties.get(property)).append("\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Runs a command and writes its result as the response. Requests without the token get a 401 response and requests
+   * with the wrong method get a 405 response. Bad parameters get a 400 response, any other error gets a 500 response
+   * with the error message.
+   * @param method the HTTP method the command takes
+   */
+  private void handle(HttpExchange exchange, String method, Command command) throws IOException {
+    int status;
+    String body;
+    try {
+      if (!hasToken(exchange)) {
+        body = "Missing or wrong " + TOKEN_HEADER + " header\n";
+        status = 401;
+      }
+      else if (!method.equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set("Allow", method);
+        body = "Use " + method + " for " + exchange.getRequestURI().getPath() + "\n";
+        status = 405;
+      }
+      else {
+        Map<String,String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (sf_post.equals(method)) {
+          params.putAll(parseQuery(readBody(exchange)));
+        }
+        body = command.run(params);
+        status = 200;
+      }
+    }
+    catch (IllegalArgumentException ex) {
+      body = ex.getMessage() + "\n";
+      status = 400;
+    }
+    catch (Exception ex) {
+      sf_logger.error("Error running " + exchange.getRequestURI(), ex);
+      body = "Error: " + ex.getMessage() + "\n";
+      status = 500;
+    }
+
+    byte[] bytes = body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Does the request have the token, compared in constant time so the token can't be guessed a character at a time
+   */
+  private boolean hasToken(HttpExchange exchange) {
+    String token = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+    return token != null && MessageDigest.isEqual(m_token, token.trim().getBytes(Charsets.UTF_8));
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    }
+  }
+
+  private static Map<String,String> parseQuery(String query) throws UnsupportedEncodingException {
+    Map<String,String> params = Maps.newHashMap();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : Splitter.on('&').omitEmptyStrings().split(query)) {
+      int idx = pair.indexOf('=');
+      String name = idx < 0 ? pair : pair.substring(0, idx);
+      String value = idx < 0 ? "" : pair.substring(idx + 1);
+      params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+    return params;
+  }
+
+  private static String require(Map<String,String> params, String name) {
+    String value = params.get(name);
+    if (value == null || value.trim().isEmpty()) {
+      throw new IllegalArgumentException("Missing parameter: " + name);
+    }
+    return value.trim();
+  }
+
+  private static Integer parseInt(String value) {
+    try {
+      return Integer.valueOf(value.trim());
+    }
+    catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Not a number: " + value);
+    }
+  }
+
+  /**
+   * Gets the port on the loopback address to listen on, once the service is listening this is the port it's actually
+   * using, e.g. when the port was set to 0 to use any free port
+   */
+  public int getPort() {
+    return m_server == null ? m_port : m_server.getAddress().getPort();
+  }
+
+  public void setPort(int port) {
+    m_port = port;
+  }
+
+  /**
+   * Gets the file the request token is written to
+   */
+  public File getTokenFile() {
+    return m_tokenFile;
+  }
+
+  public void setTokenFile(File tokenFile) {
+    m_tokenFile = tokenFile;
+  }
+
+  private interface Command {
+    String run(Map<String,String> params) throws Exception;
+  }
+}
@@ -1,10 +1,12 @@
 package cl;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import org.pharmgkb.CombinedDataReport;
 import org.pharmgkb.DnaExcelParser;
 import org.pharmgkb.RikenParser;
 import org.pharmgkb.util.HibernateUtils;
+import org.pharmgkb.util.StageScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,13 +14,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * This class runs all data parsers in the correct order and then produces the combined data sheet.
+ * This class runs all data parsers in the correct order and then produces the combined data sheet. Parsers that don't
+ * depend on each other are run at the same time, <code>load.threads</code> sets how many run at once (default 4).
  * 
  * This will also look for a properties file called <code>filepaths.properties</code> that contains filepaths to all 
- * the required data files and paths.
+ * the required data files and paths. Any <code>hibernate.*</code> properties in that file override the hibernate
+ * config, e.g. to change the connection pool size.
  * 
  * @author Ryan Whaley
  */
@@ -33,15 +39,35 @@ public class LoadAllData {
   private static final String KEY_CGS_GENO_FILE  = "cgs.genotype.file";
   private static final String KEY_CGS_SUBJ_FILE  = "cgs.subjects.file";
   private static final String KEY_OUTPUT_PATH    = "output.directory";
+  private static final String KEY_SUB_STREAMING  = "submissions.streaming";
+  private static final String KEY_SUB_THREADS    = "submissions.threads";
+  private static final String KEY_SUB_COPY       = "submissions.copy";
+  private static final String KEY_SUB_INCREMENTAL = "submissions.incremental";
+  private static final String KEY_LOAD_THREADS   = "load.threads";
+
+  // resources passed between the load stages
+  private static final String RES_SAMPLES        = "samples";
+  private static final String RES_DNA_FILE       = "dna file";
+  private static final String RES_DNA            = "dna";
+  private static final String RES_RIKEN_FILE     = "riken file";
+  private static final String RES_RIKEN          = "riken";
+  private static final String RES_PHENO_FILE     = "pheno file";
+  private static final String RES_PHENO          = "pheno";
+  private static final String RES_PHENO_ANL_FILE = "pheno analysis file";
+  private static final String RES_PHENO_ANL      = "pheno analysis";
+  private static final String RES_CGS_GENO_FILE  = "cgs genotype file";
+  private static final String RES_CGS_GENO       = "cgs genotypes";
+  private static final String RES_CGS_SUBJ_FILE  = "cgs subjects file";
+  private static final String RES_CGS_SUBJ       = "cgs subjects";
 
   private Properties m_properties; 
   
   public static void main(String[] args) {
 
     try {
-      HibernateUtils.init();
-
       LoadAllData loadAllData = new LoadAllData(args);
+      HibernateUtils.init(loadAllData.m_properties);
+
       loadAllData.run();
           
     } catch (IOException e) {
@@ -64,54 +90,76 @@ public class LoadAllData {
     }
   } 
   
+  /**
+   * Runs every parser and then the combined report as stages of a {@link StageScheduler}. Reading each supplemental
+   * file doesn't touch the DB so those all start right away, alongside loading the submission templates. The steps
+   * that apply the supplemental data to the DB wait for the subjects to be loaded, and the CGS subject list (which
+   * derives properties from everything else) and the report wait for all of them.
+   */
   private void run() throws IOException {
     try {
-      {
-        TemplateParser templateParser = new TemplateParser();
-        templateParser.setDataFile(new File((String) m_properties.get(KEY_SUB_DIR)));
-        templateParser.parseData();
-      }
-
-      {
-        DnaExcelParser dnaExcelParser = new DnaExcelParser(new File((String)m_properties.get(KEY_DNA_FILE)));
-        dnaExcelParser.parse();
-      }
-
-      {
-        RikenParser rikenParser = new RikenParser(new File((String)m_properties.get(KEY_RIKEN_FILE)));
-        rikenParser.parse();
-      }
-
-      {
-        PhenoParser phenoParser = new PhenoParser();
-        phenoParser.setDataFile(new File((String)m_properties.get(KEY_PHENO_FILE)));
-        phenoParser.parseData();
-      }
-
-      {
-        PhenoAnalysisParser phenoAnalysisParser = new PhenoAnalysisParser();
-        phenoAnalysisParser.setDataFile(new File((String)m_properties.get(KEY_PHENO_ANL_FILE)));
-        phenoAnalysisParser.parseData();
-      }
-
-      {
-        CgsGenotypeParser cgsGenotypeParser = new CgsGenotypeParser();
-        cgsGenotypeParser.setDataFile(new File((String)m_properties.get(KEY_CGS_GENO_FILE)));
-        cgsGenotypeParser.parseData();
-      }
-
-      {
-        CgsSubjectsListParser cgsSubjectsListParser = new CgsSubjectsListParser();
-        cgsSubjectsListParser.setDataFile(new File((String)m_properties.get(KEY_CGS_SUBJ_FILE)));
-        cgsSubjectsListParser.parseData();
-      }
-      
-      {
-        CombinedDataReport report = new CombinedDataReport(new File((String)m_properties.get(KEY_OUTPUT_PATH)), null);
-        report.generate();
-      }
+      TemplateParser templateParser = new TemplateParser();
+      templateParser.setDataFile(new File((String) m_properties.get(KEY_SUB_DIR)));
+      templateParser.setStreaming(Boolean.parseBoolean(m_properties.getProperty(KEY_SUB_STREAMING, "false").trim()));
+      templateParser.setCopyLoading(Boolean.parseBoolean(m_properties.getProperty(KEY_SUB_COPY, "false").trim()));
+      templateParser.setIncremental(Boolean.parseBoolean(m_properties.getProperty(KEY_SUB_INCREMENTAL, "false").trim()));
+      templateParser.setThreads(Integer.parseInt(m_properties.getProperty(KEY_SUB_THREADS, "1").trim()));
+
+      AtomicReference<DnaExcelParser> dnaExcelParser = new AtomicReference<>();
+      AtomicReference<RikenParser> rikenParser = new AtomicReference<>();
+
+      PhenoParser phenoParser = new PhenoParser();
+      phenoParser.setDataFile(new File((String)m_properties.get(KEY_PHENO_FILE)));
+
+      PhenoAnalysisParser phenoAnalysisParser = new PhenoAnalysisParser();
+      phenoAnalysisParser.setDataFile(new File((String)m_properties.get(KEY_PHENO_ANL_FILE)));
+
+      CgsGenotypeParser cgsGenotypeParser = new CgsGenotypeParser();
+      cgsGenotypeParser.setDataFile(new File((String)m_properties.get(KEY_CGS_GENO_FILE)));
+
+      CgsSubjectsListParser cgsSubjectsListParser = new CgsSubjectsListParser();
+      cgsSubjectsListParser.setDataFile(new File((String)m_properties.get(KEY_CGS_SUBJ_FILE)));
+
+      StageScheduler scheduler = new StageScheduler()
+          .add("templates", none(), of(RES_SAMPLES), templateParser::parseData)
+
+          .add("read dna", none(), of(RES_DNA_FILE),
+              () -> dnaExcelParser.set(new DnaExcelParser(new File((String)m_properties.get(KEY_DNA_FILE)))))
+          .add("read riken", none(), of(RES_RIKEN_FILE),
+              () -> rikenParser.set(new RikenParser(new File((String)m_properties.get(KEY_RIKEN_FILE)))))
+          .add("read pheno", none(), of(RES_PHENO_FILE), phenoParser::readData)
+          .add("read pheno analysis", none(), of(RES_PHENO_ANL_FILE), phenoAnalysisParser::readData)
+          .add("read cgs genotypes", none(), of(RES_CGS_GENO_FILE), cgsGenotypeParser::readData)
+          .add("read cgs subjects", none(), of(RES_CGS_SUBJ_FILE), cgsSubjectsListParser::readData)
+
+          .add("apply dna", of(RES_SAMPLES, RES_DNA_FILE), of(RES_DNA), () -> dnaExcelParser.get().parse())
+          .add("apply riken", of(RES_SAMPLES, RES_RIKEN_FILE), of(RES_RIKEN), () -> rikenParser.get().parse())
+          .add("apply pheno", of(RES_SAMPLES, RES_PHENO_FILE), of(RES_PHENO), phenoParser::parseData)
+          .add("apply pheno analysis", of(RES_SAMPLES, RES_PHENO_ANL_FILE), of(RES_PHENO_ANL),
+              phenoAnalysisParser::parseData)
+          .add("apply cgs genotypes", of(RES_SAMPLES, RES_CGS_GENO_FILE), of(RES_CGS_GENO),
+              cgsGenotypeParser::parseData)
+          // marks CGS subjects over what the genotypes set and derives properties from all the other data
+          .add("apply cgs subjects",
+              of(RES_SAMPLES, RES_CGS_SUBJ_FILE, RES_DNA, RES_RIKEN, RES_PHENO, RES_PHENO_ANL, RES_CGS_GENO),
+              of(RES_CGS_SUBJ), cgsSubjectsListParser::parseData)
+
+          .add("combined report", of(RES_CGS_SUBJ), none(), () -> {
+            CombinedDataReport report = new CombinedDataReport(new File((String)m_properties.get(KEY_OUTPUT_PATH)), null);
+            report.generate();
+          });
+
+      scheduler.run(Integer.parseInt(m_properties.getProperty(KEY_LOAD_THREADS, "4").trim()));
     } catch (Exception ex) {
       sf_logger.error("Error loading data", ex);
     }
   }
+
+  private static List<String> of(String... resources) {
+    return ImmutableList.copyOf(resources);
+  }
+
+  private static List<String> none() {
+    return ImmutableList.of();
+  }
 }
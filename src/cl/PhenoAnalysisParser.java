@@ -13,7 +13,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.List;
 
@@ -43,7 +42,7 @@ public class PhenoAnalysisParser extends CommonParser {
   protected void parseData() throws PgkbException {
     sf_logger.info("Starting to parse");
     Session session = null;
-    try (FileReader fr = new FileReader(getDataFile()); BufferedReader br = new BufferedReader(fr)) {
+    try (BufferedReader br = openDataReader()) {
       session = HibernateUtils.getSession();
 
       // burn the first two lines
@@ -41,7 +41,7 @@ public class PhenoParser extends CommonParser {
   protected void parseData() throws PgkbException {
     sf_logger.info("Starting to parse");
     Session session = null;
-    try (FileReader fr = new FileReader(getDataFile()); BufferedReader br = new BufferedReader(fr)) {
+    try (BufferedReader br = openDataReader()) {
       session = HibernateUtils.getSession();
 
       int sampleSaved = 0;
@@ -1,5 +1,7 @@
 package cl;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import org.pharmgkb.*;
 import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.util.CliHelper;
@@ -8,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * This class is the command line utility for generating reports based on data that's stored in the ICPC database.
@@ -18,7 +21,12 @@ public class ReportGeneratorCLI {
   private static final Logger sf_logger = LoggerFactory.getLogger(ReportGeneratorCLI.class);
   private File m_outputDirectory = null;
   private Integer m_project = null;
-  private String m_report = null;
+  private List<String> m_reports = null;
+  private int m_rowWindow = 0;
+  private int m_threads = 1;
+  private DelimitedReportWriter.Format m_format = null;
+  private boolean m_gzip = false;
+  private CohortFilter m_filter = null;
 
   public static void main(String args[]) {
     try {
@@ -41,9 +49,14 @@ public class ReportGeneratorCLI {
   private void parseCommandLineArgs(String args[]) throws Exception{
     CliHelper cliHelper = new CliHelper(getClass(), false);
 
-    cliHelper.addOption("r", "report", "which report to generate: combined, gwas, fndz, or mace", "report", true);
+    cliHelper.addOption("r", "report", "which report to generate: combined, gwas, fndz, or mace. separate with commas to generate several from one read of the DB", "report", true);
     cliHelper.addOption("d", "directory", "directory path to write to", "pathToDirectory", true);
     cliHelper.addOption("p", "project", "project to output", "projectId", false);
+    cliHelper.addOption("w", "window", "stream the report keeping this many rows in memory", "rowCount", false);
+    cliHelper.addOption("f", "format", "write delimited text instead of Excel: csv or tsv", "format", false);
+    cliHelper.addOption("z", "gzip", "gzip compress delimited text reports");
+    cliHelper.addOption("q", "filter", "only include subjects matching this filter, e.g. \"Gender = 2 AND Age >= 65\"", "expression", false);
+    cliHelper.addOption("t", "threads", "number of projects to render at the same time for the combined report, default 1", "threadCount", false);
 
     try {
       cliHelper.parse(args);
@@ -56,7 +69,7 @@ public class ReportGeneratorCLI {
     }
 
     if (cliHelper.hasOption("-r")) {
-      m_report = cliHelper.getValue("-r");
+      m_reports = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(cliHelper.getValue("-r")));
     }
 
     if (cliHelper.hasOption("-d")) {
@@ -67,31 +80,87 @@ public class ReportGeneratorCLI {
     if (cliHelper.hasOption("-p")) {
       setProject(cliHelper.getIntValue("-p"));
     }
+
+    if (cliHelper.hasOption("-w")) {
+      setRowWindow(cliHelper.getIntValue("-w"));
+    }
+
+    if (cliHelper.hasOption("-f")) {
+      String format = cliHelper.getValue("-f");
+      try {
+        setFormat(DelimitedReportWriter.Format.valueOf(format.toUpperCase()));
+      }
+      catch (IllegalArgumentException ex) {
+        throw new Exception("No report format found for "+format);
+      }
+    }
+
+    setGzip(cliHelper.hasOption("-z"));
+
+    if (cliHelper.hasOption("-t")) {
+      setThreads(cliHelper.getIntValue("-t"));
+    }
+
+    if (cliHelper.hasOption("-q")) {
+      try {
+        setFilter(CohortFilter.parse(cliHelper.getValue("-q")));
+      }
+      catch (IllegalArgumentException ex) {
+        throw new Exception("Bad filter: "+ex.getMessage());
+      }
+    }
   }
 
   /**
-   * Makes the report by kicking off the {@link org.pharmgkb.CombinedDataReport} generate method and outputs to the
-   * specified file
+   * Makes the reports and outputs them to the specified directory. A single report is generated on its own, several
+   * reports are generated together by a {@link MultiReportGenerator} so the samples are only read once.
    * @throws PgkbException
    */
   private void make() throws PgkbException {
-    AbstractReport report;
-    if (m_report.equalsIgnoreCase("combined")) {
-      report = new CombinedDataReport(getOutputDirectory(), getProject());
+    List<AbstractReport> reports = Lists.newArrayList();
+    for (String reportName : m_reports) {
+      AbstractReport report = makeReport(reportName, getOutputDirectory(), getProject(), getThreads());
+      report.setRowWindow(getRowWindow());
+      report.setDelimitedFormat(getFormat(), isGzip());
+      report.setFilter(getFilter());
+      reports.add(report);
     }
-    else if (m_report.equalsIgnoreCase("gwas")) {
-      report = new GwasReport(getOutputDirectory());
+
+    if (reports.size() == 1) {
+      reports.get(0).generate();
+    }
+    else {
+      new MultiReportGenerator(reports).generate();
     }
-    else if (m_report.equalsIgnoreCase("fndz")) {
-      report = new FndzReport(getOutputDirectory());
+  }
+
+  /**
+   * Makes the report object for the given report name
+   * @param reportName one of combined, gwas, fndz, or mace
+   * @param directory the directory to write the report to
+   * @param project the project for the combined report, null for all projects
+   * @param threads the number of projects to render at the same time for the combined report
+   * @throws PgkbException if the report name isn't known
+   */
+  static AbstractReport makeReport(String reportName, File directory, Integer project, int threads)
+      throws PgkbException {
+    if (reportName.equalsIgnoreCase("combined")) {
+      CombinedDataReport report = new CombinedDataReport(directory, project);
+      report.setThreads(threads);
+      return report;
     }
-    else if (m_report.equalsIgnoreCase("mace")) {
-      report = new MaceReport(getOutputDirectory());
+    else if (reportName.equalsIgnoreCase("gwas")) {
+      return new GwasReport(directory);
+    }
+    else if (reportName.equalsIgnoreCase("fndz")) {
+      return new FndzReport(directory);
+    }
+    else if (reportName.equalsIgnoreCase("mace")) {
+      return new MaceReport(directory);
     }
     else {
-      throw new PgkbException("No report type found for "+m_report);
+      throw new PgkbException("No report type found for "+reportName);
     }
-    report.generate();
   }
 
   /**
@@ -113,4 +182,59 @@ public class ReportGeneratorCLI {
   public void setProject(Integer project) {
     m_project = project;
   }
+
+  /**
+   * Gets the number of rows to keep in memory while writing the report, 0 to keep all rows in memory
+   */
+  public int getRowWindow() {
+    return m_rowWindow;
+  }
+
+  public void setRowWindow(int rowWindow) {
+    m_rowWindow = rowWindow;
+  }
+
+  /**
+   * Gets the number of projects rendered at the same time for the combined report
+   */
+  public int getThreads() {
+    return m_threads;
+  }
+
+  public void setThreads(int threads) {
+    m_threads = threads;
+  }
+
+  /**
+   * Gets the delimited text format to write reports in, null to write Excel workbooks
+   */
+  public DelimitedReportWriter.Format getFormat() {
+    return m_format;
+  }
+
+  public void setFormat(DelimitedReportWriter.Format format) {
+    m_format = format;
+  }
+
+  /**
+   * Should delimited text reports be gzip compressed
+   */
+  public boolean isGzip() {
+    return m_gzip;
+  }
+
+  public void setGzip(boolean gzip) {
+    m_gzip = gzip;
+  }
+
+  /**
+   * Gets the filter subjects have to match to be included, on top of each report's own filter
+   */
+  public CohortFilter getFilter() {
+    return m_filter;
+  }
+
+  public void setFilter(CohortFilter filter) {
+    m_filter = filter;
+  }
 }
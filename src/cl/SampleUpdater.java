@@ -1,15 +1,27 @@
 package cl;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.hibernate.Session;
 import org.pharmgkb.Global;
+import org.pharmgkb.SampleBatchIterator;
 import org.pharmgkb.SubjectIterator;
+import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.CliHelper;
 import org.pharmgkb.util.HibernateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Refreshes all calculated columns for {@link Sample} objects
@@ -19,41 +31,155 @@ import java.util.List;
 public class SampleUpdater {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+  private int m_threads = 1;
+
   public static void main(String[] args) {
     HibernateUtils.init();
 
-    Session session = null;
     try {
-      session = HibernateUtils.getSession();
+      SampleUpdater updater = new SampleUpdater();
+      updater.parseCommandLineArgs(args);
+      updater.update();
+    }
+    catch (Exception ex) {
+      sf_logger.error("Error updating samples", ex);
+    }
 
-      //noinspection unchecked
-      List<String> subjectIds = session
-          .createQuery("select s.subjectId from Sample s order by s.project, s.subjectId")
-          .list();
+    Global.shutdown();
+    System.exit(0);
+  }
+
+  private void parseCommandLineArgs(String[] args) throws Exception {
+    CliHelper cliHelper = new CliHelper(getClass(), false);
+
+    cliHelper.addOption("t", "threads", "number of projects to update at the same time, default 1", "threadCount");
+
+    try {
+      cliHelper.parse(args);
+      if (cliHelper.isHelpRequested()) {
+        cliHelper.printHelp();
+        System.exit(1);
+      }
+    } catch (Exception ex) {
+      throw new Exception("Error parsing arguments", ex);
+    }
+
+    if (cliHelper.hasOption("-t")) {
+      setThreads(cliHelper.getIntValue("-t"));
+    }
+  }
+
+  /**
+   * Updates all samples. With one thread all samples are updated in a single transaction, otherwise each project is
+   * updated and committed in its own session on a pool of worker threads.
+   * @return the number of samples updated
+   * @throws Exception if any samples couldn't be updated
+   */
+  int update() throws Exception {
+    int updatedCount;
+    if (getThreads() > 1) {
+      updatedCount = updateProjectsInParallel();
+    }
+    else {
+      updatedCount = updateProject(null);
+    }
+    sf_logger.info("Updated {} samples", updatedCount);
+    return updatedCount;
+  }
 
-      int project = 0;
-      for (String id : subjectIds) {
+  /**
+   * Runs {@link SubjectIterator#postProcess(Sample)} on every sample in the project and commits the changes
+   * @param project the project to update, null for all projects
+   * @return the number of samples updated
+   */
+  private int updateProject(Integer project) {
+    Session session = null;
+    int updatedCount = 0;
+    try {
+      session = HibernateUtils.getSession();
 
-        Sample sample = (Sample)session.get(Sample.class, id);
+      SampleBatchIterator sampleIterator =
+          new SampleBatchIterator(session, project, SampleBatchIterator.DEFAULT_FETCH_SIZE, false);
+      int currentProject = 0;
+      while (sampleIterator.hasNext()) {
+        Sample sample = sampleIterator.next();
 
-        if (project != sample.getProject()) {
+        if (currentProject != sample.getProject()) {
           sf_logger.info("Updating project {}", sample.getProject());
-          project = sample.getProject();
+          currentProject = sample.getProject();
         }
 
         SubjectIterator.postProcess(sample);
+        updatedCount++;
       }
 
       HibernateUtils.commit(session);
     }
-    catch (Exception ex) {
-      sf_logger.error("Error updating samples", ex);
+    finally {
+      HibernateUtils.close(session);
+    }
+    return updatedCount;
+  }
+
+  /**
+   * Updates each project on a bounded pool of worker threads. A project that fails doesn't stop the others, all
+   * failures are reported once every project has been tried.
+   * @return the total number of samples updated
+   * @throws Exception if any of the projects failed to update
+   */
+  private int updateProjectsInParallel() throws Exception {
+    List<Integer> projects;
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      //noinspection unchecked
+      projects = session.createQuery("select distinct s.project from Sample s order by s.project").list();
     }
     finally {
       HibernateUtils.close(session);
     }
 
-    Global.shutdown();
-    System.exit(0);
+    int threads = Math.max(1, Math.min(getThreads(), projects.size()));
+    sf_logger.info("Updating "+projects.size()+" projects with "+threads+" threads");
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("sample-updater-%d").build());
+    Map<Integer,Future<Integer>> results = Maps.newLinkedHashMap();
+    try {
+      for (Integer project : projects) {
+        results.put(project, executor.submit(() -> updateProject(project)));
+      }
+
+      int updatedCount = 0;
+      List<Integer> failures = Lists.newArrayList();
+      for (Integer project : results.keySet()) {
+        try {
+          updatedCount += results.get(project).get();
+        }
+        catch (ExecutionException ex) {
+          sf_logger.error("Couldn't update project "+project, ex.getCause());
+          failures.add(project);
+        }
+      }
+      if (failures.size() > 0) {
+        throw new PgkbException("Couldn't update "+failures.size()+" projects: "+failures);
+      }
+      return updatedCount;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the number of projects that get updated at the same time
+   */
+  int getThreads() {
+    return m_threads;
+  }
+
+  void setThreads(int threads) {
+    Preconditions.checkArgument(threads > 0, "Thread count must be positive: %s", threads);
+    m_threads = threads;
   }
 }
@@ -2,16 +2,24 @@ package cl;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.FileUtils;
 import org.hibernate.Session;
 import org.pharmgkb.ExcelParser;
 import org.pharmgkb.exception.PgkbException;
+import org.pharmgkb.util.CliHelper;
 import org.pharmgkb.util.HibernateUtils;
+import org.pharmgkb.util.IngestManifest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * This class parses data files based on the Excel template file.
@@ -26,6 +34,11 @@ public class TemplateParser extends CommonParser {
           "truncate table properties cascade",
           "truncate table samples cascade");
 
+  private boolean m_streaming = false;
+  private int m_threads = 1;
+  private boolean m_copyLoading = false;
+  private boolean m_incremental = false;
+
   /**
    * main method, parses command line args and either kicks off the data parsing or analysis
    * @param args array of String comamnd line args
@@ -65,21 +78,72 @@ public class TemplateParser extends CommonParser {
   }
 
   /**
-   * Parses the given <code>file</code> and loads the contents into the DB
+   * Parses the given <code>file</code> and loads the contents into the DB, replacing any subjects already loaded for
+   * its project. The file is only recorded in the {@link IngestManifest} once it has loaded successfully.
    * @param file an Excel (.xlsx or .xls) template file with data in it
+   * @return the number of subjects saved from the file
+   * @throws Exception if the file couldn't be loaded, the file is left out of the manifest
    */
-  private void parseFile(File file) throws Exception {
+  int parseFile(File file) throws Exception {
     Preconditions.checkNotNull(file);
     Preconditions.checkArgument(file.exists(), "File does not exist: %s", file);
 
-    ExcelParser parser = new ExcelParser(file);
+    // forget the file before clearing its project so a failed load is never mistaken for an unchanged file
+    forgetFile(file);
+    int savedCount = loadFile(file);
+    recordFile(file);
+    return savedCount;
+  }
+
+  /**
+   * Removes the file from the {@link IngestManifest}
+   */
+  void forgetFile(File file) {
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      IngestManifest.remove(session, file.getName());
+      HibernateUtils.commit(session);
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
+  }
+
+  /**
+   * Clears the subjects for the file's project and saves the subjects in the file
+   * @return the number of subjects saved from the file
+   * @throws Exception if the file couldn't be parsed or saved
+   */
+  int loadFile(File file) throws Exception {
+    ExcelParser parser = new ExcelParser(file, isStreaming());
+    parser.setCopyLoading(isCopyLoading());
     parser.clearSubjects();
-    parser.parse();
+    return parser.parse();
+  }
+
+  /**
+   * Records the file in the {@link IngestManifest} as loaded
+   */
+  void recordFile(File file) throws Exception {
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      IngestManifest.record(session, file, ExcelParser.getProjectId(file));
+      HibernateUtils.commit(session);
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
   }
 
   /**
    * Given the <code>directory</code>, find all the xlsx and xls files in it and run the <code>parseFile</code> method
    * on it.
+   *
+   * Normally all the loaded data is cleared first. When loading incrementally only the files that have changed since
+   * they were last loaded, according to the {@link IngestManifest}, are parsed and only their projects are replaced.
+   * Projects whose files have been removed from the directory are cleared.
    * @param directory a directory holding all the project data files to be parsed
    * @throws Exception can occur from data file parsing IO or DB interaction
    */
@@ -88,27 +152,210 @@ public class TemplateParser extends CommonParser {
     Preconditions.checkArgument(directory.exists(), "File does not exist: %s", directory);
     Preconditions.checkArgument(directory.isDirectory(), "File is not directory: %s", directory);
 
-    sf_logger.info("clearing the db tables for entry");
+    List<File> files = Lists.newArrayList();
+    for (File file : FileUtils.listFiles(directory, new String[]{"xlsx","xls"}, false)) {
+      if (file.getName().startsWith("~")) {
+        continue;
+      }
+      files.add(file);
+    }
+
+    if (isIncremental()) {
+      files = findChangedFiles(files);
+      if (files.isEmpty()) {
+        sf_logger.info("No submission files have changed since they were loaded");
+        return;
+      }
+    }
+    else {
+      sf_logger.info("clearing the db tables for entry");
+      Session session = null;
+      try {
+        session = HibernateUtils.getSession();
+        for (String truncateQuery : sf_truncateTableQueries) {
+          session.createSQLQuery(truncateQuery).executeUpdate();
+        }
+        IngestManifest.clear(session);
+        HibernateUtils.commit(session);
+        HibernateUtils.evictSamples();
+      }
+      finally {
+        HibernateUtils.close(session);
+      }
+    }
+
+    int savedCount = parseFiles(files);
+    sf_logger.info("Saved "+savedCount+" subjects from "+files.size()+" files");
+  }
+
+  /**
+   * Finds the files that are new or have changed since they were last loaded. Projects for files that were loaded
+   * before but aren't in the list any more are cleared.
+   * @param files all the submission files in the directory
+   * @return the files that need to be loaded
+   * @throws Exception can occur from file IO or DB interaction
+   */
+  private List<File> findChangedFiles(List<File> files) throws Exception {
+    IngestManifest manifest;
     Session session = null;
     try {
       session = HibernateUtils.getSession();
-      for (String truncateQuery : sf_truncateTableQueries) {
-        session.createSQLQuery(truncateQuery).executeUpdate();
-      }
-      HibernateUtils.commit(session);
+      manifest = IngestManifest.load(session);
     }
     finally {
       HibernateUtils.close(session);
     }
 
-    for (File file : FileUtils.listFiles(directory, new String[]{"xlsx","xls"}, false)) {
-      if (file.getName().startsWith("~")) {
-        continue;
+    List<File> changedFiles = Lists.newArrayList();
+    Set<String> fileNames = Sets.newHashSet();
+    for (File file : files) {
+      fileNames.add(file.getName());
+      if (manifest.isUnchanged(file)) {
+        sf_logger.info("Skipping unchanged file {}", file.getName());
       }
-      parseFile(file);
+      else {
+        changedFiles.add(file);
+      }
+    }
+
+    for (String fileName : manifest.getEntries().keySet()) {
+      if (!fileNames.contains(fileName)) {
+        sf_logger.info("Clearing project for removed file {}", fileName);
+        session = null;
+        try {
+          session = HibernateUtils.getSession();
+          IngestManifest.remove(session, fileName);
+          HibernateUtils.commit(session);
+        }
+        finally {
+          HibernateUtils.close(session);
+        }
+        ExcelParser.clearProject(manifest.getEntries().get(fileName).getProject());
+      }
+    }
+
+    sf_logger.info("{} of {} submission files have changed", changedFiles.size(), files.size());
+    return changedFiles;
+  }
+
+  /**
+   * Parses each of the given files on a bounded pool of worker threads, one thread unless more have been set. Each
+   * worker parses and saves one workbook at a time in its own session. A file that fails to load doesn't stop the
+   * others, all failures are reported once every file has been tried.
+   * @param files the Excel template files to parse
+   * @return the total number of subjects saved from all the files
+   * @throws Exception if any of the files failed to load
+   */
+  int parseFiles(List<File> files) throws Exception {
+    if (files.isEmpty()) {
+      return 0;
+    }
+    int threads = Math.max(1, Math.min(getThreads(), files.size()));
+    sf_logger.info("Parsing "+files.size()+" files with "+threads+" threads");
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("template-parser-%d").build());
+    Map<File,Future<Integer>> results = Maps.newLinkedHashMap();
+    try {
+      for (File file : files) {
+        results.put(file, executor.submit(() -> {
+          // name the thread after the file so log lines can be traced back to their project
+          Thread thread = Thread.currentThread();
+          String threadName = thread.getName();
+          thread.setName(file.getName());
+          try {
+            return parseFile(file);
+          }
+          finally {
+            thread.setName(threadName);
+          }
+        }));
+      }
+
+      int savedCount = 0;
+      List<String> failures = Lists.newArrayList();
+      for (File file : results.keySet()) {
+        try {
+          savedCount += results.get(file).get();
+        }
+        catch (ExecutionException ex) {
+          sf_logger.error("Couldn't load "+file, ex.getCause());
+          failures.add(file.getName());
+        }
+      }
+      if (failures.size() > 0) {
+        throw new PgkbException("Couldn't load "+failures.size()+" files: "+failures);
+      }
+      return savedCount;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Override
+  void addCommandLineOptions(CliHelper cliHelper) {
+    cliHelper.addOption("s", "stream", "stream rows from the .xlsx files instead of loading whole workbooks in memory");
+    cliHelper.addOption("t", "threads", "number of files in a directory to load at the same time, default 1", "threadCount");
+    cliHelper.addOption("c", "copy", "bulk load subjects with PostgreSQL COPY instead of saving them through Hibernate");
+    cliHelper.addOption("i", "incremental", "only load the files in a directory that changed since they were last loaded");
+  }
+
+  @Override
+  void readCommandLineOptions(CliHelper cliHelper) {
+    setStreaming(cliHelper.hasOption("-s"));
+    setCopyLoading(cliHelper.hasOption("-c"));
+    setIncremental(cliHelper.hasOption("-i"));
+    if (cliHelper.hasOption("-t")) {
+      setThreads(cliHelper.getIntValue("-t"));
     }
   }
 
+  /**
+   * Are workbooks read one row at a time instead of being loaded into memory
+   */
+  boolean isStreaming() {
+    return m_streaming;
+  }
+
+  void setStreaming(boolean streaming) {
+    m_streaming = streaming;
+  }
+
+  /**
+   * Are subjects bulk loaded with PostgreSQL COPY instead of being saved through Hibernate
+   */
+  boolean isCopyLoading() {
+    return m_copyLoading;
+  }
+
+  void setCopyLoading(boolean copyLoading) {
+    m_copyLoading = copyLoading;
+  }
+
+  /**
+   * Are only changed files in a directory loaded, instead of clearing and reloading everything
+   */
+  boolean isIncremental() {
+    return m_incremental;
+  }
+
+  void setIncremental(boolean incremental) {
+    m_incremental = incremental;
+  }
+
+  /**
+   * Gets the number of files in a directory that get loaded at the same time
+   */
+  int getThreads() {
+    return m_threads;
+  }
+
+  void setThreads(int threads) {
+    Preconditions.checkArgument(threads > 0, "Thread count must be positive: %s", threads);
+    m_threads = threads;
+  }
+
   @Override
   String getFileDescriptor() {
     return sf_fileDescriptor;
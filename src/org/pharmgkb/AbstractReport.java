@@ -1,6 +1,8 @@
 package org.pharmgkb;
 
+import com.google.common.base.Preconditions;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.hibernate.Session;
 import org.pharmgkb.enums.Property;
@@ -17,10 +19,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.invoke.MethodHandles;
+import java.util.BitSet;
 import java.util.List;
 
 /**
- * Extend this class to generate an Excel file that lists properties for {@link Sample} objects.
+ * Extend this class to generate an Excel file that lists properties for {@link Sample} objects. Reports can also be
+ * written as CSV or TSV files by setting a {@link DelimitedReportWriter.Format}.
  *
  * @author Ryan Whaley
  */
@@ -28,111 +32,422 @@ public abstract class AbstractReport {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   private File m_file;
+  private int m_defaultWidth;
+  private int m_rowWindow = 0;
   private Workbook m_workbook;
   private Sheet m_sheet;
   private int rowIdx = 0;
   private CellStyle m_headerStyle;
   private CellStyle m_codeStyle;
   private CellStyle m_monospaceStyle;
+  private DelimitedReportWriter.Format m_delimitedFormat = null;
+  private boolean m_gzip = false;
+  private DelimitedReportWriter m_delimitedWriter = null;
+  private CohortFilter m_filter = null;
 
   /**
    * Abstract constructor. Sets up objects for working with Excel file.
    * @param defaultWidth the default width of columns to be displayed in the sheet
    */
   public AbstractReport(int defaultWidth) {
-    m_workbook = new XSSFWorkbook();
+    m_defaultWidth = defaultWidth;
+    initWorkbook(new XSSFWorkbook());
+  }
+
+  /**
+   * Sets up the sheet and styles in the given workbook, any rows written to a previous workbook are dropped
+   * @param workbook the workbook to write the report to
+   */
+  private void initWorkbook(Workbook workbook) {
+    m_workbook = workbook;
 
     m_sheet = m_workbook.createSheet(getSheetName());
-    m_sheet.setDefaultColumnWidth(defaultWidth);
+    m_sheet.setDefaultColumnWidth(m_defaultWidth);
 
     setStyles();
   }
 
   /**
-   * Implement this method to acutally generate the Excel sheet
-   * @throws PgkbException can occur from file IO
+   * Sets how many rows are kept in memory while writing the report. When this is more than 0 the report is written
+   * with a {@link SXSSFWorkbook} which flushes older rows to a compressed temp file once the window is full, so memory
+   * use doesn't grow with the number of samples. Rows that have been flushed can't be read or changed any more. When
+   * this is 0 (the default) the whole report is kept in memory.
+   *
+   * This has to be called before any rows are written.
+   * @param rowWindow the number of rows to keep in memory, 0 to keep all rows in memory
    */
-  public abstract void generate() throws PgkbException;
+  public void setRowWindow(int rowWindow) {
+    Preconditions.checkArgument(rowWindow >= 0, "Row window can't be negative: %s", rowWindow);
+    Preconditions.checkState(rowIdx == 0, "Row window must be set before rows are written");
+
+    m_rowWindow = rowWindow;
+    if (rowWindow > 0) {
+      SXSSFWorkbook workbook = new SXSSFWorkbook(rowWindow);
+      workbook.setCompressTempFiles(true);
+      initWorkbook(workbook);
+    }
+    else {
+      initWorkbook(new XSSFWorkbook());
+    }
+  }
 
   /**
-   * Gets the next row of the Excel sheet. Keeps an internal counter to know which row is being written
-   * @return an Excel {@link Row}
+   * Gets how many rows are kept in memory while writing the report, 0 means all rows are kept in memory
    */
-  public Row getNextRow() {
-    return m_sheet.createRow(rowIdx++);
+  public int getRowWindow() {
+    return m_rowWindow;
   }
 
   /**
-   * Writes the Excel sheet out to the given {@link OutputStream}.
-   * @param out an {@link OutputStream} to write to
-   * @throws IOException
+   * Sets a delimited text format to write the report in instead of an Excel workbook. The header rows and the values
+   * are the same as the Excel report, the file for the report is renamed with the extension for the format (and
+   * <code>.gz</code> if it's compressed).
+   *
+   * This has to be called before any rows are written.
+   * @param format the format to write in, null to write an Excel workbook
+   * @param gzip true to gzip compress the delimited file
    */
-  public void saveToOutputStream(OutputStream out) throws IOException {
-    m_workbook.write(out);
+  public void setDelimitedFormat(DelimitedReportWriter.Format format, boolean gzip) {
+    Preconditions.checkState(rowIdx == 0, "Format must be set before rows are written");
+    Preconditions.checkArgument(format != null || !gzip, "Only delimited reports can be compressed");
+
+    m_delimitedFormat = format;
+    m_gzip = gzip;
+    if (format != null && getFile() != null) {
+      setFile(DelimitedReportWriter.getFile(getFile(), format, gzip));
+    }
   }
 
   /**
-   * Should the supplied sample be written to the Excel file? true = write, false = don't write.
-   *
-   * This is a default implementaiton that just makes sure sample is not null. You should override this if you have more
-   * checks to make.
-   * @param sample a {@link Sample} object to test for inclusion
-   * @return true = include, false = don't include
+   * Gets the delimited text format the report is written in, null if it's written as an Excel workbook
    */
-  public boolean includeSample(Sample sample) {
-    return sample != null;
+  public DelimitedReportWriter.Format getDelimitedFormat() {
+    return m_delimitedFormat;
   }
 
   /**
-   * This is a common method for running through all {@link Sample} objects in the DB, filtering using the
-   * <code>includeSample</code> method, and then writing the given {@link List} of {@link Property} values to the
-   * specified filename.
-   *
-   * This will have header rows for describing the {@link Property} enums being written.
+   * Gets the {@link Property} values written as columns, in column order
+   */
+  public abstract List<Property> getColumns();
+
+  /**
+   * Gets the project this report is limited to, null if it includes all projects. Samples are still run through
+   * <code>includeSample</code>, this just lets a report that's generated on its own skip loading other projects.
+   */
+  public Integer getProject() {
+    return null;
+  }
+
+  /**
+   * Generates the report by reading all {@link Sample} objects in the DB, filtering using the
+   * <code>includeSample</code> method, and then writing the values from <code>renderSample</code> to the file for
+   * this report. Samples are loaded in chunks by a {@link SampleBatchIterator} so their properties don't have to be
+   * queried one sample at a time.
    *
-   * @param properties a {@link List} of {@link Property} values to write as columns to the Excel sheet
-   * @throws PgkbException
+   * Use a {@link MultiReportGenerator} to generate more than one report from the same read of the DB.
+   * @throws PgkbException can occur from file IO
    */
-  public void writeSampleProperties(List<Property> properties) throws PgkbException {
+  public void generate() throws PgkbException {
+    sf_logger.info("starting "+this.getClass().getSimpleName()+", writing to file " + getFile());
+
     Session session = null;
-    try(FileOutputStream out = new FileOutputStream(getFile())) {
+    try {
       session = HibernateUtils.getSession();
+      writeHeader(session);
 
-      Row codeRow = getNextRow();
-      Row titleRow = getNextRow();
-      Row formatRow = getNextRow();
+      SampleBatchIterator sampleIterator = iterateSamples(session, getProject());
+      while (sampleIterator.hasNext()) {
+        Sample sample = sampleIterator.next();
+        if (includeSample(sample)) {
+          writeRow(renderSample(sample));
+        }
+      }
+      save();
+    }
+    catch (Exception ex) {
+      throw new PgkbException("Error writing report",ex);
+    }
+    finally {
+      closeUnsaved();
+      HibernateUtils.close(session);
+    }
+    sf_logger.info("done with {}",this.getClass().getSimpleName());
+  }
 
-      for (int i=0; i<properties.size(); i++) {
-        Property property = properties.get(i);
+  /**
+   * Makes an iterator over the samples in the DB that could be in this report. If the report has a filter only the
+   * subjects that match it are loaded.
+   * @param session the session to load samples with
+   * @param project the project to limit samples to, null for all projects
+   */
+  SampleBatchIterator iterateSamples(Session session, Integer project) {
+    CohortFilter filter = getFilter();
+    if (filter == null) {
+      return new SampleBatchIterator(session, project, SampleBatchIterator.DEFAULT_FETCH_SIZE, true);
+    }
+    return new SampleBatchIterator(session, filter.lookupSubjectIds(session, project),
+        SampleBatchIterator.DEFAULT_FETCH_SIZE, true);
+  }
 
-        ExcelUtils.writeCell(titleRow, i, property.getDisplayName(), getHeaderStyle());
-        ExcelUtils.writeCell(codeRow, i, property.getShortName(), getMonospaceStyle());
-        ExcelUtils.writeCell(formatRow, i, IcpcUtils.lookupFormat(session, property), getCodeStyle());
-      }
+  /**
+   * Generates the report from samples that have already been loaded, e.g. a {@link CohortSnapshot}, instead of reading
+   * them from the DB. The DB is only used to look up the property formats for the header.
+   * @param samples the samples to filter and write, in the order they should be written
+   * @throws PgkbException can occur from file IO
+   */
+  public void generate(Iterable<Sample> samples) throws PgkbException {
+    writeSamples(samples, true);
+  }
 
-      //noinspection unchecked
-      List<String> rez = session.createQuery("select s.subjectId from Sample s order by s.project, s.subjectId").list();
-      for (String sampleId : rez) {
-        Sample sample = (Sample)session.get(Sample.class, sampleId);
+  /**
+   * Generates the report from the samples in a {@link CohortIndex}, selecting them with <code>selectRows</code> instead
+   * of testing each sample with <code>includeSample</code>
+   * @param index an index of the samples to report on
+   * @throws PgkbException can occur from file IO
+   */
+  public void generate(CohortIndex index) throws PgkbException {
+    writeSamples(index.getSamples(selectRows(index)), false);
+  }
 
-        if (includeSample(sample)) {
-          Row sampleRow = getNextRow();
-          for (int i = 0; i < properties.size(); i++) {
-            ExcelUtils.writeCell(sampleRow, i, sample.getProperties().get(properties.get(i)));
-          }
+  /**
+   * Writes the header and then a row for each sample
+   * @param samples the samples to write, in order
+   * @param filter true to skip samples that <code>includeSample</code> rejects, false if they've already been selected
+   */
+  private void writeSamples(Iterable<Sample> samples, boolean filter) throws PgkbException {
+    sf_logger.info("starting "+this.getClass().getSimpleName()+", writing to file " + getFile());
+
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      writeHeader(session);
+
+      for (Sample sample : samples) {
+        if (!filter || includeSample(sample)) {
+          writeRow(renderSample(sample));
         }
       }
-      saveToOutputStream(out);
+      save();
     }
     catch (Exception ex) {
       throw new PgkbException("Error writing report",ex);
     }
     finally {
+      closeUnsaved();
       HibernateUtils.close(session);
     }
     sf_logger.info("done with {}",this.getClass().getSimpleName());
   }
 
+  /**
+   * Writes the header rows describing the {@link Property} columns: the short name, the display name, and the format
+   * of the column.
+   * @param session an open Hibernate session to look up property formats with
+   * @throws IOException can occur when writing a delimited file
+   */
+  public void writeHeader(Session session) throws IOException {
+    List<Property> properties = getColumns();
+
+    if (m_delimitedFormat != null) {
+      Object[] codes = new Object[properties.size()];
+      Object[] titles = new Object[properties.size()];
+      Object[] formats = new Object[properties.size()];
+      for (int i=0; i<properties.size(); i++) {
+        Property property = properties.get(i);
+        codes[i] = property.getShortName();
+        titles[i] = property.getDisplayName();
+        formats[i] = IcpcUtils.lookupFormat(session, property);
+      }
+      writeRow(codes);
+      writeRow(titles);
+      writeRow(formats);
+      return;
+    }
+
+    Row codeRow = getNextRow();
+    Row titleRow = getNextRow();
+    Row formatRow = getNextRow();
+    formatHeader(codeRow, titleRow, formatRow);
+
+    for (int i=0; i<properties.size(); i++) {
+      Property property = properties.get(i);
+
+      ExcelUtils.writeCell(titleRow, i, property.getDisplayName(), getHeaderStyle());
+      ExcelUtils.writeCell(codeRow, i, property.getShortName(), getMonospaceStyle());
+      ExcelUtils.writeCell(formatRow, i, IcpcUtils.lookupFormat(session, property), getCodeStyle());
+    }
+  }
+
+  /**
+   * Override this to change the look of the header rows before they're written to. Does nothing by default.
+   * @param codeRow the row of property short names
+   * @param titleRow the row of property display names
+   * @param formatRow the row of property formats
+   */
+  protected void formatHeader(Row codeRow, Row titleRow, Row formatRow) {
+  }
+
+  /**
+   * Gets the values to write for the sample, one per column in {@link #getColumns()}. Values can be a {@link String}
+   * or a {@link Double}, nulls make an empty cell. This doesn't touch the workbook so it can be called on a different
+   * thread than the one that writes the rows.
+   *
+   * This is a default implementation that just writes the raw property values. You should override this if values
+   * need to be formatted.
+   * @param sample a {@link Sample} that's been included in the report
+   * @return an array of cell values
+   */
+  public Object[] renderSample(Sample sample) {
+    List<Property> properties = getColumns();
+    Object[] values = new Object[properties.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = sample.getProperties().get(properties.get(i));
+    }
+    return values;
+  }
+
+  /**
+   * Writes the values from <code>renderSample</code> to the next row of the sheet
+   * @param values an array of cell values
+   * @throws IOException can occur when writing a delimited file
+   */
+  public void writeRow(Object[] values) throws IOException {
+    if (m_delimitedFormat != null) {
+      if (m_delimitedWriter == null) {
+        m_delimitedWriter = new DelimitedReportWriter(getFile(), m_delimitedFormat, m_gzip);
+      }
+      m_delimitedWriter.writeRow(values);
+      rowIdx++;
+      return;
+    }
+
+    Row row = getNextRow();
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] instanceof Double) {
+        ExcelUtils.writeCell(row, i, (Double)values[i], null);
+      }
+      else if (values[i] != null) {
+        ExcelUtils.writeCell(row, i, values[i].toString());
+      }
+    }
+  }
+
+  /**
+   * Saves the sheet to the file for this report, or finishes the file if it's a delimited report
+   * @throws IOException can occur when writing the file
+   */
+  public void save() throws IOException {
+    if (m_delimitedFormat != null) {
+      if (m_delimitedWriter == null) {
+        m_delimitedWriter = new DelimitedReportWriter(getFile(), m_delimitedFormat, m_gzip);
+      }
+      m_delimitedWriter.close();
+      m_delimitedWriter = null;
+      return;
+    }
+    try (FileOutputStream out = new FileOutputStream(getFile())) {
+      saveToOutputStream(out);
+    }
+  }
+
+  /**
+   * Closes the delimited file if the report failed before it was saved and deletes it, so the file handle isn't left
+   * open and a truncated file isn't mistaken for a finished report. Does nothing once the report has been saved or for
+   * Excel reports, which aren't written until they're saved.
+   */
+  void closeUnsaved() {
+    if (m_delimitedWriter == null) {
+      return;
+    }
+    try {
+      m_delimitedWriter.close();
+    }
+    catch (IOException ex) {
+      sf_logger.warn("Couldn't close "+getFile(), ex);
+    }
+    m_delimitedWriter = null;
+    if (getFile().exists() && !getFile().delete()) {
+      sf_logger.warn("Couldn't delete unfinished report {}", getFile());
+    }
+  }
+
+  /**
+   * Gets the next row of the Excel sheet. Keeps an internal counter to know which row is being written
+   * @return an Excel {@link Row}
+   */
+  public Row getNextRow() {
+    return m_sheet.createRow(rowIdx++);
+  }
+
+  /**
+   * Writes the Excel sheet out to the given {@link OutputStream}.
+   * @param out an {@link OutputStream} to write to
+   * @throws IOException
+   */
+  public void saveToOutputStream(OutputStream out) throws IOException {
+    m_workbook.write(out);
+    if (m_workbook instanceof SXSSFWorkbook) {
+      // remove the temp files the flushed rows were written to
+      ((SXSSFWorkbook)m_workbook).dispose();
+    }
+  }
+
+  /**
+   * Should the supplied sample be written to the Excel file? true = write, false = don't write.
+   *
+   * This is a default implementaiton that just makes sure sample is not null, is in the project for this report if it
+   * has one, and matches the filter for this report if it has one. Reports that always select the same subjects should
+   * return a filter from <code>getDefaultFilter</code> instead of overriding this.
+   * @param sample a {@link Sample} object to test for inclusion
+   * @return true = include, false = don't include
+   */
+  public boolean includeSample(Sample sample) {
+    CohortFilter filter = getFilter();
+    return sample != null && (getProject() == null || getProject().equals(sample.getProject())) &&
+        (filter == null || filter.matches(sample));
+  }
+
+  /**
+   * Selects the rows of the index to write. This has to select the same samples as <code>includeSample</code>, so
+   * override both together.
+   *
+   * This default implementation selects every row, or the rows in the project for this report if it has one, that
+   * match the filter for this report.
+   * @param index an index of the samples to select from
+   * @return the selected rows
+   */
+  public BitSet selectRows(CohortIndex index) {
+    BitSet rows = getProject() == null ? index.all() : index.getProjectRows(getProject());
+    CohortFilter filter = getFilter();
+    if (filter != null) {
+      rows.and(filter.select(index));
+    }
+    return rows;
+  }
+
+  /**
+   * Gets the filter this report always applies, null to include every sample. Override this for reports that only
+   * cover some subjects.
+   */
+  public CohortFilter getDefaultFilter() {
+    return null;
+  }
+
+  /**
+   * Gets the filter samples have to match to be written, both the default filter and any filter that's been set
+   * @return the filter, null to include every sample
+   */
+  public CohortFilter getFilter() {
+    return CohortFilter.and(getDefaultFilter(), m_filter);
+  }
+
+  /**
+   * Sets an extra filter samples have to match, on top of the default filter for the report
+   * @param filter a filter or null to only use the default filter
+   */
+  public void setFilter(CohortFilter filter) {
+    m_filter = filter;
+  }
 
   /**
    * Gets the file name to write to
@@ -0,0 +1,603 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.type.StandardBasicTypes;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.IcpcUtils;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A filter for selecting {@link Sample} objects written as a small expression over {@link Property} names, e.g.
+ * <code>RIKEN_ID != NA AND (CGS = 1 OR Project &lt;= 4)</code>.
+ *
+ * Properties can be given by their enum name or their short name, case doesn't matter. Comparisons are
+ * <code>=</code>, <code>!=</code>, <code>&lt;</code>, <code>&lt;=</code>, <code>&gt;</code>, and <code>&gt;=</code>,
+ * and they can be combined with <code>AND</code>, <code>OR</code>, <code>NOT</code>, and parentheses. Values with
+ * spaces can be quoted with ' or ". The project is compared using the project column of the sample.
+ *
+ * <ul>
+ *   <li><code>P = NA</code> matches samples where the property is blank, any value that {@link IcpcUtils#isBlank}
+ *   treats as blank (e.g. 99 or unknown) works the same as NA</li>
+ *   <li><code>P = value</code> matches values exactly, or by number for number properties and the project</li>
+ *   <li><code>P != value</code> matches everything <code>P = value</code> doesn't, including blank values</li>
+ *   <li><code>&lt;</code>, <code>&lt;=</code>, <code>&gt;</code>, and <code>&gt;=</code> only work on number
+ *   properties and the project, blank values and values that aren't numbers never match</li>
+ * </ul>
+ *
+ * A filter is parsed once and can then be checked against a single sample, evaluated against a {@link CohortIndex}
+ * using its bitmaps, or turned into SQL to look up just the IDs of the matching subjects so the samples that don't match
+ * are never loaded.
+ *
+ * @author Ryan Whaley
+ */
+public class CohortFilter {
+  private static final String sf_notBlankSql = "lower(regexp_replace(p.value, '^[[:space:]]+|[[:space:]]+$', '', 'g')) not in (:%s)";
+  private static final String sf_numberSql = "case when p.value ~ '" + CohortIndex.NUMBER_REGEX + "' and %s " +
+      "then cast(trim(p.value) as double precision) end";
+
+  private final String m_expression;
+  private final Node m_root;
+
+  private CohortFilter(String expression, Node root) {
+    m_expression = expression;
+    m_root = root;
+  }
+
+  /**
+   * Parses a filter expression
+   * @param expression an expression like <code>RIKEN_ID != NA AND Project != 4</code>
+   * @return the parsed filter
+   * @throws IllegalArgumentException if the expression can't be parsed
+   */
+  public static CohortFilter parse(String expression) {
+    Preconditions.checkArgument(expression != null && expression.trim().length() > 0, "No filter expression");
+    Parser parser = new Parser(expression);
+    Node root = parser.parseOr();
+    parser.expect(TokenType.END);
+    return new CohortFilter(expression.trim(), root);
+  }
+
+  /**
+   * Combines filters so a sample has to match all of them
+   * @param filters filters to combine, null filters are ignored
+   * @return the combined filter, or null if every filter was null
+   */
+  public static CohortFilter and(CohortFilter... filters) {
+    CohortFilter combined = null;
+    for (CohortFilter filter : filters) {
+      if (filter != null) {
+        combined = combined == null ? filter :
+            new CohortFilter("(" + combined + ") AND (" + filter + ")", new And(combined.m_root, filter.m_root));
+      }
+    }
+    return combined;
+  }
+
+  /**
+   * Combines filters so a sample has to match at least one of them
+   * @param filters filters to combine, a null filter matches every sample
+   * @return the combined filter, or null if any filter was null
+   */
+  public static CohortFilter or(Collection<CohortFilter> filters) {
+    Preconditions.checkArgument(filters.size() > 0, "No filters to combine");
+    CohortFilter combined = null;
+    for (CohortFilter filter : filters) {
+      if (filter == null) {
+        return null;
+      }
+      combined = combined == null ? filter :
+          new CohortFilter("(" + combined + ") OR (" + filter + ")", new Or(combined.m_root, filter.m_root));
+    }
+    return combined;
+  }
+
+  /**
+   * Does the sample match this filter
+   */
+  public boolean matches(Sample sample) {
+    return m_root.matches(sample);
+  }
+
+  /**
+   * Gets the rows of the index that match this filter
+   * @param index an index of samples
+   * @return the matching rows
+   */
+  public BitSet select(CohortIndex index) {
+    return m_root.select(index);
+  }
+
+  /**
+   * Gets the IDs of the subjects in the DB that match this filter, ordered by project and subject ID like
+   * {@link SampleBatchIterator#lookupSubjectIds(Session, Integer)}
+   * @param session the session to query with
+   * @param project the project to limit subjects to, null for all projects
+   * @return a List of subject IDs
+   */
+  public List<String> lookupSubjectIds(Session session, Integer project) {
+    Map<String,Object> params = Maps.newLinkedHashMap();
+    StringBuilder sql = new StringBuilder("select s.subject_id from samples s where ")
+        .append(toSql(params));
+    if (project != null) {
+      sql.append(" and s.project=:project");
+      params.put("project", project);
+    }
+    sql.append(" order by s.project, s.subject_id");
+
+    SQLQuery query = session.createSQLQuery(sql.toString());
+    query.addScalar("subject_id", StandardBasicTypes.STRING);
+    for (Map.Entry<String,Object> param : params.entrySet()) {
+      if (param.getValue() instanceof Collection) {
+        query.setParameterList(param.getKey(), (Collection)param.getValue());
+      }
+      else {
+        query.setParameter(param.getKey(), param.getValue());
+      }
+    }
+    //noinspection unchecked
+    return query.setCacheable(true).setCacheRegion(SampleBatchIterator.SUBJECT_ID_CACHE_REGION).list();
+  }
+
+  /**
+   * Gets the SQL condition for this filter on the <code>samples s</code> table, it selects the same subjects as
+   * {@link #matches(Sample)}
+   * @param params filled with the values of the named parameters used in the SQL
+   */
+  String toSql(Map<String,Object> params) {
+    return m_root.toSql(params);
+  }
+
+  /**
+   * Adds the parameter for the list of blank words and gets the SQL condition for a property value that isn't blank
+   */
+  private static String notBlankSql(Map<String,Object> params) {
+    String param = "p" + params.size();
+    List<String> blankWords = Lists.newArrayList(IcpcUtils.getBlankWords());
+    blankWords.add("");
+    params.put(param, blankWords);
+    return String.format(sf_notBlankSql, param);
+  }
+
+  @Override
+  public String toString() {
+    return m_expression;
+  }
+
+
+  private interface Node {
+    boolean matches(Sample sample);
+
+    BitSet select(CohortIndex index);
+
+    /**
+     * Writes this node as a SQL condition on the <code>samples s</code> table
+     * @param params the query parameters, parameters used by this node are added to it
+     */
+    String toSql(Map<String,Object> params);
+  }
+
+  private static class And implements Node {
+    private final Node m_left;
+    private final Node m_right;
+
+    private And(Node left, Node right) {
+      m_left = left;
+      m_right = right;
+    }
+
+    public boolean matches(Sample sample) {
+      return m_left.matches(sample) && m_right.matches(sample);
+    }
+
+    public BitSet select(CohortIndex index) {
+      BitSet rows = m_left.select(index);
+      rows.and(m_right.select(index));
+      return rows;
+    }
+
+    public String toSql(Map<String,Object> params) {
+      return "(" + m_left.toSql(params) + " and " + m_right.toSql(params) + ")";
+    }
+  }
+
+  private static class Or implements Node {
+    private final Node m_left;
+    private final Node m_right;
+
+    private Or(Node left, Node right) {
+      m_left = left;
+      m_right = right;
+    }
+
+    public boolean matches(Sample sample) {
+      return m_left.matches(sample) || m_right.matches(sample);
+    }
+
+    public BitSet select(CohortIndex index) {
+      BitSet rows = m_left.select(index);
+      rows.or(m_right.select(index));
+      return rows;
+    }
+
+    public String toSql(Map<String,Object> params) {
+      return "(" + m_left.toSql(params) + " or " + m_right.toSql(params) + ")";
+    }
+  }
+
+  private static class Not implements Node {
+    private final Node m_node;
+
+    private Not(Node node) {
+      m_node = node;
+    }
+
+    public boolean matches(Sample sample) {
+      return !m_node.matches(sample);
+    }
+
+    public BitSet select(CohortIndex index) {
+      BitSet rows = index.all();
+      rows.andNot(m_node.select(index));
+      return rows;
+    }
+
+    public String toSql(Map<String,Object> params) {
+      return "not (" + m_node.toSql(params) + ")";
+    }
+  }
+
+  private enum Operator {
+    EQ("="),
+    NE("!="),
+    LT("<"),
+    LE("<="),
+    GT(">"),
+    GE(">=");
+
+    private final String m_symbol;
+
+    Operator(String symbol) {
+      m_symbol = symbol;
+    }
+
+    private static Operator forSymbol(String symbol) {
+      if (symbol.equals("==")) {
+        return EQ;
+      }
+      if (symbol.equals("<>")) {
+        return NE;
+      }
+      for (Operator operator : values()) {
+        if (operator.m_symbol.equals(symbol)) {
+          return operator;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Compares two numbers, NaN never matches. Not for {@link #NE}, which is the opposite of {@link #EQ}.
+     */
+    private boolean compare(double value, double other) {
+      switch (this) {
+        case EQ: return value == other;
+        case LT: return value < other;
+        case LE: return value <= other;
+        case GT: return value > other;
+        case GE: return value >= other;
+        default: throw new IllegalStateException("Can't compare with " + this);
+      }
+    }
+  }
+
+  /**
+   * Compares a property to a value. {@link Operator#NE} is stored as a {@link Not} around an {@link Operator#EQ}
+   * comparison so each comparison only has to handle the other operators.
+   */
+  private static class Comparison implements Node {
+    private final Property m_property;
+    private final Operator m_operator;
+    /** the value to compare to, null for NA */
+    private final String m_value;
+    private final double m_number;
+
+    private Comparison(Property property, Operator operator, String value, double number) {
+      m_property = property;
+      m_operator = operator;
+      m_value = value;
+      m_number = number;
+    }
+
+    public boolean matches(Sample sample) {
+      if (m_property == Property.PROJECT) {
+        Integer project = sample.getProject();
+        if (m_value == null) {
+          return project == null;
+        }
+        return project != null && m_operator.compare(project, m_number);
+      }
+
+      String value = sample.getProperties() == null ? null : sample.getProperties().get(m_property);
+      if (m_value == null) {
+        return IcpcUtils.isBlank(value);
+      }
+      if (m_property.isNumber()) {
+        double number = CohortIndex.parseNumber(value);
+        return !Double.isNaN(number) && m_operator.compare(number, m_number);
+      }
+      return m_value.equals(value);
+    }
+
+    public BitSet select(CohortIndex index) {
+      if (m_property == Property.PROJECT) {
+        if (m_value != null && m_operator == Operator.EQ && m_number == Math.rint(m_number)) {
+          return index.getProjectRows((int)m_number);
+        }
+        BitSet rows = new BitSet(index.size());
+        for (int row = 0; row < index.size(); row++) {
+          if (matches(index.getSample(row))) {
+            rows.set(row);
+          }
+        }
+        return rows;
+      }
+
+      if (m_value == null) {
+        BitSet rows = index.all();
+        rows.andNot(index.getPresent(m_property));
+        return rows;
+      }
+      if (m_property.isNumber()) {
+        BitSet present = index.getPresent(m_property);
+        BitSet rows = new BitSet(index.size());
+        for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+          double number = index.getNumber(row, m_property);
+          if (!Double.isNaN(number) && m_operator.compare(number, m_number)) {
+            rows.set(row);
+          }
+        }
+        return rows;
+      }
+      return index.getRows(m_property, m_value);
+    }
+
+    public String toSql(Map<String,Object> params) {
+      String param = "p" + params.size();
+      if (m_property == Property.PROJECT) {
+        if (m_value == null) {
+          return "s.project is null";
+        }
+        params.put(param, m_number);
+        return "coalesce(s.project " + m_operator.m_symbol + " :" + param + ", false)";
+      }
+
+      String exists = "exists (select 1 from properties p where p.subject_id=s.subject_id and p.property_id=" +
+          m_property.ordinal() + " and ";
+      if (m_value == null) {
+        return "not " + exists + notBlankSql(params) + ")";
+      }
+      if (m_property.isNumber()) {
+        // blank words like 99 are valid numbers so the number has to be checked for them too, otherwise a negated
+        // comparison would drop subjects that matches() keeps
+        String number = String.format(sf_numberSql, notBlankSql(params));
+        param = "p" + params.size();
+        params.put(param, m_number);
+        return exists + number + " " + m_operator.m_symbol + " :" + param + ")";
+      }
+      params.put(param, m_value);
+      return exists + "p.value = :" + param + ")";
+    }
+  }
+
+
+  private enum TokenType {
+    WORD,
+    QUOTED,
+    OPERATOR,
+    OPEN,
+    CLOSE,
+    END
+  }
+
+  private static class Token {
+    private final TokenType m_type;
+    private final String m_text;
+    private final int m_position;
+
+    private Token(TokenType type, String text, int position) {
+      m_type = type;
+      m_text = text;
+      m_position = position;
+    }
+
+    private boolean isKeyword(String keyword) {
+      return m_type == TokenType.WORD && m_text.equalsIgnoreCase(keyword);
+    }
+  }
+
+  /**
+   * A recursive descent parser for filter expressions, <code>AND</code> binds tighter than <code>OR</code>
+   */
+  private static class Parser {
+    private final String m_expression;
+    private final List<Token> m_tokens;
+    private int m_idx = 0;
+
+    private Parser(String expression) {
+      m_expression = expression;
+      m_tokens = tokenize(expression);
+    }
+
+    private static List<Token> tokenize(String expression) {
+      List<Token> tokens = Lists.newArrayList();
+      int i = 0;
+      while (i < expression.length()) {
+        char c = expression.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        }
+        else if (c == '(') {
+          tokens.add(new Token(TokenType.OPEN, "(", i++));
+        }
+        else if (c == ')') {
+          tokens.add(new Token(TokenType.CLOSE, ")", i++));
+        }
+        else if (c == '\'' || c == '"') {
+          int end = expression.indexOf(c, i + 1);
+          if (end < 0) {
+            throw new IllegalArgumentException("Unclosed quote at position " + i + " in filter: " + expression);
+          }
+          tokens.add(new Token(TokenType.QUOTED, expression.substring(i + 1, end), i));
+          i = end + 1;
+        }
+        else if (isOperatorChar(c)) {
+          int start = i;
+          while (i < expression.length() && isOperatorChar(expression.charAt(i))) {
+            i++;
+          }
+          tokens.add(new Token(TokenType.OPERATOR, expression.substring(start, i), start));
+        }
+        else {
+          int start = i;
+          while (i < expression.length() && !Character.isWhitespace(expression.charAt(i)) &&
+              "()'\"".indexOf(expression.charAt(i)) < 0 && !isOperatorChar(expression.charAt(i))) {
+            i++;
+          }
+          tokens.add(new Token(TokenType.WORD, expression.substring(start, i), start));
+        }
+      }
+      tokens.add(new Token(TokenType.END, "end of filter", expression.length()));
+      return tokens;
+    }
+
+    private static boolean isOperatorChar(char c) {
+      return c == '=' || c == '!' || c == '<' || c == '>';
+    }
+
+    private Token next() {
+      return m_tokens.get(m_idx++);
+    }
+
+    private Token peek() {
+      return m_tokens.get(m_idx);
+    }
+
+    private Token expect(TokenType type) {
+      Token token = next();
+      if (token.m_type != type) {
+        throw error("Expected " + type.name().toLowerCase() + " but found " + token.m_text, token);
+      }
+      return token;
+    }
+
+    private IllegalArgumentException error(String message, Token token) {
+      return new IllegalArgumentException(message + " at position " + token.m_position + " in filter: " + m_expression);
+    }
+
+    private Node parseOr() {
+      Node node = parseAnd();
+      while (peek().isKeyword("OR")) {
+        next();
+        node = new Or(node, parseAnd());
+      }
+      return node;
+    }
+
+    private Node parseAnd() {
+      Node node = parseUnary();
+      while (peek().isKeyword("AND")) {
+        next();
+        node = new And(node, parseUnary());
+      }
+      return node;
+    }
+
+    private Node parseUnary() {
+      Token token = peek();
+      if (token.isKeyword("NOT")) {
+        next();
+        return new Not(parseUnary());
+      }
+      if (token.m_type == TokenType.OPEN) {
+        next();
+        Node node = parseOr();
+        expect(TokenType.CLOSE);
+        return node;
+      }
+      return parseComparison();
+    }
+
+    private Node parseComparison() {
+      Token nameToken = expect(TokenType.WORD);
+      Property property = lookupProperty(nameToken);
+
+      Token operatorToken = expect(TokenType.OPERATOR);
+      Operator operator = Operator.forSymbol(operatorToken.m_text);
+      if (operator == null) {
+        throw error("Unknown comparison " + operatorToken.m_text, operatorToken);
+      }
+
+      Token valueToken = next();
+      if (valueToken.m_type != TokenType.WORD && valueToken.m_type != TokenType.QUOTED) {
+        throw error("Expected a value but found " + valueToken.m_text, valueToken);
+      }
+      String value = IcpcUtils.isBlank(valueToken.m_text) ? null : valueToken.m_text;
+
+      boolean numeric = property.isNumber() || property == Property.PROJECT;
+      double number = Double.NaN;
+      if (operator != Operator.EQ && operator != Operator.NE) {
+        if (!numeric) {
+          throw error(property.getShortName() + " isn't a number so it can't be compared with " +
+              operatorToken.m_text, operatorToken);
+        }
+        if (value == null) {
+          throw error("Can't compare NA with " + operatorToken.m_text, valueToken);
+        }
+      }
+      if (numeric && value != null) {
+        number = CohortIndex.parseNumber(value);
+        if (Double.isNaN(number)) {
+          throw error(property.getShortName() + " has to be compared to a number, not " + value, valueToken);
+        }
+      }
+
+      if (operator == Operator.NE) {
+        return new Not(new Comparison(property, Operator.EQ, value, number));
+      }
+      return new Comparison(property, operator, value, number);
+    }
+
+    /**
+     * Finds a property by its enum name or short name, ignoring case
+     */
+    private Property lookupProperty(Token token) {
+      String name = token.m_text;
+      for (String keyword : ImmutableList.of("AND", "OR", "NOT")) {
+        if (token.isKeyword(keyword)) {
+          throw error("Expected a property but found " + name, token);
+        }
+      }
+      for (Property property : Property.values()) {
+        if (property.name().equalsIgnoreCase(name)) {
+          return property;
+        }
+      }
+      for (Property property : Property.values()) {
+        if (property.getShortName().equalsIgnoreCase(name)) {
+          return property;
+        }
+      }
+      throw error("Unknown property " + name, token);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.IcpcUtils;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only, column-oriented copy of the property values of a list of {@link Sample} objects, for selecting and
+ * counting subjects without going through each sample's property map.
+ *
+ * Each sample is a row, numbered in the order the samples were given, and each {@link Property} is a column. Number
+ * properties are kept as <code>double</code> values, everything else as Strings. Every column has a bitmap of the rows
+ * that have a value (not blank or NA), and properties with only a few distinct values (Yes/No properties, gender, race,
+ * etc.) also get a bitmap per value. The project of each sample is indexed the same way. Selections are made by
+ * combining these bitmaps with the {@link BitSet} <code>and</code>, <code>or</code>, and <code>andNot</code> methods
+ * and then turning the selected rows back into samples with {@link #getSamples(BitSet)}.
+ *
+ * Bitmaps returned by this class are copies, so callers can change them.
+ *
+ * @author Ryan Whaley
+ */
+public class CohortIndex {
+  /** properties with more distinct values than this aren't indexed by value */
+  public static final int MAX_INDEXED_VALUES = 64;
+  /** the number syntax accepted for number properties, also used by the SQL that {@link CohortFilter} generates */
+  static final String NUMBER_REGEX = "^ *[-+]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][-+]?[0-9]+)? *$";
+  private static final int sf_propertyCount = Property.values().length;
+  private static final Pattern sf_numberPattern = Pattern.compile(NUMBER_REGEX);
+
+  private final List<Sample> m_samples;
+  private final String[][] m_strings = new String[sf_propertyCount][];
+  private final double[][] m_numbers = new double[sf_propertyCount][];
+  private final BitSet[] m_present = new BitSet[sf_propertyCount];
+  private final List<Map<String,BitSet>> m_valueIndexes = Lists.newArrayListWithCapacity(sf_propertyCount);
+  private final Map<Integer,BitSet> m_projectIndex;
+
+  /**
+   * Constructor
+   * @param samples the samples to index, rows are numbered in this order
+   */
+  public CohortIndex(List<Sample> samples) {
+    Preconditions.checkNotNull(samples);
+    m_samples = ImmutableList.copyOf(samples);
+    int size = m_samples.size();
+
+    for (Property property : Property.values()) {
+      int idx = property.ordinal();
+      BitSet present = new BitSet(size);
+      Map<String,BitSet> valueIndex = property.isNumber() ? null : Maps.<String,BitSet>newHashMap();
+      if (property.isNumber()) {
+        m_numbers[idx] = new double[size];
+      }
+      else {
+        m_strings[idx] = new String[size];
+      }
+
+      for (int row = 0; row < size; row++) {
+        Map<Property,String> properties = m_samples.get(row).getProperties();
+        String value = properties == null ? null : properties.get(property);
+        boolean blank = IcpcUtils.isBlank(value);
+
+        if (property.isNumber()) {
+          m_numbers[idx][row] = parseNumber(value);
+        }
+        else {
+          m_strings[idx][row] = value;
+          if (!blank && valueIndex != null) {
+            BitSet rows = valueIndex.get(value);
+            if (rows == null) {
+              if (valueIndex.size() == MAX_INDEXED_VALUES) {
+                // too many distinct values to be worth a bitmap each
+                valueIndex = null;
+              }
+              else {
+                rows = new BitSet(size);
+                valueIndex.put(value, rows);
+              }
+            }
+            if (rows != null) {
+              rows.set(row);
+            }
+          }
+        }
+
+        if (!blank) {
+          present.set(row);
+        }
+      }
+      m_present[idx] = present;
+      m_valueIndexes.add(valueIndex == null ? null : ImmutableMap.copyOf(valueIndex));
+    }
+
+    Map<Integer,BitSet> projectIndex = Maps.newHashMap();
+    for (int row = 0; row < size; row++) {
+      Integer project = m_samples.get(row).getProject();
+      if (project != null) {
+        BitSet rows = projectIndex.get(project);
+        if (rows == null) {
+          rows = new BitSet(size);
+          projectIndex.put(project, rows);
+        }
+        rows.set(row);
+      }
+    }
+    m_projectIndex = ImmutableMap.copyOf(projectIndex);
+  }
+
+  /**
+   * Parses a number property value, values that are blank or don't match {@link #NUMBER_REGEX} are treated as
+   * missing. Java suffixes and words like <code>5d</code> or <code>NaN</code> aren't numbers here since the DB can't
+   * cast them.
+   * @return the value, {@link Double#NaN} if it's missing
+   */
+  static double parseNumber(String value) {
+    if (IcpcUtils.isBlank(value) || !sf_numberPattern.matcher(value).matches()) {
+      return Double.NaN;
+    }
+    return Double.parseDouble(value.trim());
+  }
+
+  /**
+   * Gets the number of rows
+   */
+  public int size() {
+    return m_samples.size();
+  }
+
+  /**
+   * Gets a bitmap with every row set
+   */
+  public BitSet all() {
+    BitSet rows = new BitSet(size());
+    rows.set(0, size());
+    return rows;
+  }
+
+  /**
+   * Gets the rows that have a value for the property, blank and NA values don't count. This is the same test as
+   * {@link IcpcUtils#isBlank(String)}, so a number property value that can't be parsed still counts.
+   */
+  public BitSet getPresent(Property property) {
+    return (BitSet)m_present[property.ordinal()].clone();
+  }
+
+  /**
+   * Is there a bitmap for each value of the property, if not {@link #getRows(Property, String)} has to scan the column
+   */
+  public boolean isIndexed(Property property) {
+    return m_valueIndexes.get(property.ordinal()) != null;
+  }
+
+  /**
+   * Gets the rows where the property has exactly the given value
+   * @param property a property that isn't a number property
+   * @param value the value to match, a blank or NA value matches nothing
+   * @return the matching rows
+   */
+  public BitSet getRows(Property property, String value) {
+    Preconditions.checkArgument(!property.isNumber(), "Not a String property: %s", property);
+    if (IcpcUtils.isBlank(value)) {
+      return new BitSet(size());
+    }
+
+    Map<String,BitSet> valueIndex = m_valueIndexes.get(property.ordinal());
+    if (valueIndex != null) {
+      BitSet rows = valueIndex.get(value);
+      return rows == null ? new BitSet(size()) : (BitSet)rows.clone();
+    }
+
+    String[] column = m_strings[property.ordinal()];
+    BitSet rows = new BitSet(size());
+    for (int row = m_present[property.ordinal()].nextSetBit(0); row >= 0;
+         row = m_present[property.ordinal()].nextSetBit(row + 1)) {
+      if (value.equals(column[row])) {
+        rows.set(row);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Gets the rows for samples in the given project
+   */
+  public BitSet getProjectRows(Integer project) {
+    BitSet rows = m_projectIndex.get(project);
+    return rows == null ? new BitSet(size()) : (BitSet)rows.clone();
+  }
+
+  /**
+   * Gets the String value of a property in a row
+   * @return the value as stored on the sample, may be null or NA
+   */
+  public String getString(int row, Property property) {
+    Preconditions.checkArgument(!property.isNumber(), "Not a String property: %s", property);
+    return m_strings[property.ordinal()][row];
+  }
+
+  /**
+   * Gets the value of a number property in a row
+   * @return the value, {@link Double#NaN} if it's blank, NA, or not a number
+   */
+  public double getNumber(int row, Property property) {
+    Preconditions.checkArgument(property.isNumber(), "Not a number property: %s", property);
+    return m_numbers[property.ordinal()][row];
+  }
+
+  /**
+   * Gets the number of selected rows for each value of an indexed property
+   * @param property an indexed property
+   * @param rows the selected rows
+   * @return the count for each value that has at least one selected row
+   */
+  public Map<String,Integer> countByValue(Property property, BitSet rows) {
+    Map<String,BitSet> valueIndex = m_valueIndexes.get(property.ordinal());
+    Preconditions.checkArgument(valueIndex != null, "Property isn't indexed: %s", property);
+
+    Map<String,Integer> counts = Maps.newTreeMap();
+    for (Map.Entry<String,BitSet> entry : valueIndex.entrySet()) {
+      BitSet matches = (BitSet)entry.getValue().clone();
+      matches.and(rows);
+      if (!matches.isEmpty()) {
+        counts.put(entry.getKey(), matches.cardinality());
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Gets the sample for a row
+   */
+  public Sample getSample(int row) {
+    return m_samples.get(row);
+  }
+
+  /**
+   * Gets the samples for the selected rows, in row order
+   */
+  public List<Sample> getSamples(BitSet rows) {
+    List<Sample> samples = Lists.newArrayListWithCapacity(rows.cardinality());
+    for (int row = rows.nextSetBit(0); row >= 0 && row < size(); row = rows.nextSetBit(row + 1)) {
+      samples.add(m_samples.get(row));
+    }
+    return samples;
+  }
+}
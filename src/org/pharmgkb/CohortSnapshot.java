@@ -0,0 +1,101 @@
+package org.pharmgkb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.hibernate.Session;
+import org.pharmgkb.model.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the {@link Sample} objects in the DB, with their properties, loaded into memory at one point in time. The samples
+ * are detached from the session that loaded them so reports and lookups can be run against the snapshot without going
+ * back to the DB. The snapshot doesn't change, load a new one after the DB is updated.
+ *
+ * Samples are in the same order a {@link SampleBatchIterator} returns them in, by project and then subject ID.
+ *
+ * @author Ryan Whaley
+ */
+public class CohortSnapshot {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private final List<Sample> m_samples;
+  private final Map<String,Sample> m_samplesById;
+  private final Date m_loaded;
+  private final CohortIndex m_index;
+
+  private CohortSnapshot(List<Sample> samples) {
+    m_samples = ImmutableList.copyOf(samples);
+    ImmutableMap.Builder<String,Sample> samplesById = ImmutableMap.builder();
+    for (Sample sample : m_samples) {
+      samplesById.put(sample.getSubjectId(), sample);
+    }
+    m_samplesById = samplesById.build();
+    m_loaded = new Date();
+    m_index = new CohortIndex(m_samples);
+  }
+
+  /**
+   * Makes a snapshot of samples that are already loaded
+   * @param samples the samples, ordered by project and then subject ID
+   * @return a new snapshot
+   */
+  public static CohortSnapshot of(List<Sample> samples) {
+    return new CohortSnapshot(samples);
+  }
+
+  /**
+   * Loads all samples from the DB
+   * @param session an open Hibernate session, it's cleared while loading
+   * @return a new snapshot
+   */
+  public static CohortSnapshot load(Session session) {
+    long start = System.currentTimeMillis();
+    SampleBatchIterator sampleIterator = new SampleBatchIterator(session);
+    List<Sample> samples = ImmutableList.copyOf(sampleIterator);
+    // detach the last chunk too so nothing in the snapshot is tied to the session
+    session.clear();
+    sf_logger.info("Loaded {} samples in {} ms", samples.size(), System.currentTimeMillis() - start);
+    return new CohortSnapshot(samples);
+  }
+
+  /**
+   * Gets all the samples, ordered by project and then subject ID
+   */
+  public List<Sample> getSamples() {
+    return m_samples;
+  }
+
+  /**
+   * Gets the sample with the given subject ID
+   * @param subjectId a subject ID, e.g. PA123
+   * @return the sample or null if there isn't one with that ID
+   */
+  public Sample getSample(String subjectId) {
+    return m_samplesById.get(subjectId);
+  }
+
+  /**
+   * Gets a {@link CohortIndex} of the samples for selecting and counting them, its rows are in the same order as
+   * {@link #getSamples()}
+   */
+  public CohortIndex getIndex() {
+    return m_index;
+  }
+
+  public int size() {
+    return m_samples.size();
+  }
+
+  /**
+   * Gets when this snapshot was loaded
+   */
+  public Date getLoaded() {
+    return new Date(m_loaded.getTime());
+  }
+}
@@ -1,20 +1,29 @@
 package org.pharmgkb;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.poi.ss.usermodel.Row;
 import org.hibernate.Session;
 import org.pharmgkb.enums.Property;
 import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.model.Sample;
-import org.pharmgkb.util.ExcelUtils;
 import org.pharmgkb.util.HibernateUtils;
 import org.pharmgkb.util.IcpcUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This report generator will dump all subjects and their properties to a single file.
@@ -26,8 +35,10 @@ public class CombinedDataReport extends AbstractReport {
   private static final String sf_filename = "icpc.combined.xlsx";
   private static final int sf_defaultColumnWidth = 15;
   public static final String DATA_SHEET_NAME = "Subject_level_Data";
+  private static final List<Property> sf_columns = ImmutableList.copyOf(Property.values());
 
   private Integer m_project = null;
+  private int m_threads = 1;
 
   /**
    * Constructor
@@ -50,100 +61,191 @@ public class CombinedDataReport extends AbstractReport {
   }
 
   /**
-   * Generate the report and save it to the file specified at construction.
+   * Generate the report and save it to the file specified at construction. When all projects are being written with
+   * more than one thread, each project's rows are rendered on a pool of worker threads and then written to the sheet
+   * in project order, so the output is the same as writing them one at a time. Only as many projects as there are
+   * threads are rendered ahead of the one being written.
    *
    * @throws PgkbException can occur if output file is not specified or if I/O operations fail
    */
+  @Override
   public void generate() throws PgkbException {
+    if (getThreads() <= 1 || getProject() != null) {
+      super.generate();
+      return;
+    }
+
     sf_logger.info("starting "+this.getClass().getSimpleName()+", writing to file " + getFile());
 
     Session session = null;
-
-    try(FileOutputStream out = new FileOutputStream(getFile())) {
+    List<Integer> projects;
+    try {
       session = HibernateUtils.getSession();
+      writeHeader(session);
+      //noinspection unchecked
+      projects = session.createQuery("select distinct s.project from Sample s order by s.project").list();
+    }
+    catch (IOException ex) {
+      closeUnsaved();
+      throw new PgkbException("Error writing report",ex);
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
 
-      Row nameRow = getNextRow();
-      Row descripRow = getNextRow();
-      Row formatRow = getNextRow();
-
-      descripRow.setHeightInPoints(30f);
-      formatRow.setHeightInPoints(60f);
-
-      for (Property property : Property.values()) {
-        sf_logger.debug("{}: {}", property.ordinal(), property.getDisplayName());
-
-        ExcelUtils.writeCell(descripRow, property.ordinal(), property.getDisplayName(), getHeaderStyle());
-        ExcelUtils.writeCell(nameRow, property.ordinal(), property.getShortName(), getMonospaceStyle());
-        ExcelUtils.writeCell(formatRow, property.ordinal(), IcpcUtils.lookupFormat(session, property), getCodeStyle());
-      }
-
-      List rez;
-      if (m_project == null) {
-        rez = session.createQuery("select s.subjectId from Sample s order by s.project,s.subjectId").list();
-      }
-      else {
-        rez = session.createQuery("select s.subjectId from Sample s where s.project=:pid order by s.subjectId")
-                .setInteger("pid", m_project)
-                .list();
-      }
-      int projectId = 0;
-      for (Object result : rez) {
-        Sample sample = (Sample)session.get(Sample.class, (String)result);
-        if (projectId != sample.getProject()) {
-          sf_logger.info("writing project {}", sample.getProject());
-          projectId = sample.getProject();
+    int threads = Math.max(1, Math.min(getThreads(), projects.size()));
+    sf_logger.info("Rendering "+projects.size()+" projects with "+threads+" threads");
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("combined-report-%d").build());
+    // at most one project per thread is rendered or waiting to be written at a time, each project's rows are written in
+    // project order as soon as it's done and then dropped
+    Map<Integer,Future<List<Object[]>>> pending = Maps.newLinkedHashMap();
+    Iterator<Integer> unsubmitted = projects.iterator();
+    try {
+      List<Integer> failures = Lists.newArrayList();
+      while (unsubmitted.hasNext() || !pending.isEmpty()) {
+        // no more projects are started once one fails since the report won't be saved
+        while (unsubmitted.hasNext() && pending.size() < threads && failures.isEmpty()) {
+          Integer project = unsubmitted.next();
+          pending.put(project, executor.submit(() -> renderProject(project)));
+        }
+        if (pending.isEmpty()) {
+          break;
         }
-        Row row = getNextRow();
-
-        for (Property property : Property.values()) {
-          try {
-            Integer valueColIdx = property.ordinal();
-            boolean isNumber = property.getValidator() == IcpcUtils.VALIDATOR_NUMBER;
-            String propValue = sample.getProperties().get(property);
 
-            // if it's blank, write NA
-            if (IcpcUtils.isBlank(propValue)) {
-              ExcelUtils.writeCell(row, valueColIdx, IcpcUtils.NA);
-            }
-            // if property is a number, try to write a Double to a Number formatted column
-            else if (isNumber) {
-              try {
-
-                double numValue = Double.valueOf(propValue);
-                if (property == Property.AGE) {
-                  ExcelUtils.writeCell(row, valueColIdx, Math.floor(numValue), null);
-                }
-                else {
-                  ExcelUtils.writeCell(row, valueColIdx, numValue, null);
-                }
-
-              } catch (NumberFormatException ex) {
-                sf_logger.debug("Input string is not number: {}", propValue);
-                ExcelUtils.writeCell(row, valueColIdx, propValue);
-              }
-            }
-            // otherwise, treat it like plain text
-            else {
-              ExcelUtils.writeCell(row, valueColIdx, propValue);
+        Integer project = pending.keySet().iterator().next();
+        Future<List<Object[]>> result = pending.remove(project);
+        try {
+          List<Object[]> rows = result.get();
+          if (failures.isEmpty()) {
+            sf_logger.info("writing project {}", project);
+            for (Object[] row : rows) {
+              writeRow(row);
             }
           }
-          catch (Exception ex) {
-            sf_logger.error("Error writing data for sample {}, property {}", result, property.getShortName());
-          }
         }
+        catch (ExecutionException ex) {
+          sf_logger.error("Couldn't render project "+project, ex.getCause());
+          failures.add(project);
+        }
+      }
+      if (failures.size() > 0) {
+        throw new PgkbException("Couldn't render "+failures.size()+" projects: "+failures);
       }
 
-      saveToOutputStream(out);
+      save();
+    }
+    catch (PgkbException ex) {
+      throw ex;
     }
     catch (Exception ex) {
       throw new PgkbException("Error writing report",ex);
     }
     finally {
-      HibernateUtils.close(session);
+      executor.shutdownNow();
+      closeUnsaved();
     }
     sf_logger.info("done with {}",this.getClass().getSimpleName());
   }
 
+  /**
+   * Renders the rows for every sample in the project in its own session
+   * @param project the project to render
+   * @return the rendered rows in subject ID order
+   */
+  private List<Object[]> renderProject(Integer project) {
+    Session session = null;
+    try {
+      session = HibernateUtils.getSession();
+      List<Object[]> rows = Lists.newArrayList();
+      SampleBatchIterator sampleIterator = iterateSamples(session, project);
+      while (sampleIterator.hasNext()) {
+        Sample sample = sampleIterator.next();
+        if (includeSample(sample)) {
+          rows.add(renderSample(sample));
+        }
+      }
+      return rows;
+    }
+    finally {
+      HibernateUtils.close(session);
+    }
+  }
+
+  @Override
+  public List<Property> getColumns() {
+    return sf_columns;
+  }
+
+  @Override
+  public Integer getProject() {
+    return m_project;
+  }
+
+  @Override
+  protected void formatHeader(Row codeRow, Row titleRow, Row formatRow) {
+    titleRow.setHeightInPoints(30f);
+    formatRow.setHeightInPoints(60f);
+  }
+
+  /**
+   * Renders every property for the sample. Blank values are written as NA and number properties are written as
+   * {@link Double} values so they end up in Number formatted cells.
+   * @param sample a {@link Sample} that's been included in the report
+   * @return an array of cell values, one per {@link Property}
+   */
+  @Override
+  public Object[] renderSample(Sample sample) {
+    Object[] values = new Object[sf_columns.size()];
+    for (Property property : sf_columns) {
+      int valueColIdx = property.ordinal();
+      try {
+        String propValue = sample.getProperties().get(property);
+
+        // if it's blank, write NA
+        if (IcpcUtils.isBlank(propValue)) {
+          values[valueColIdx] = IcpcUtils.NA;
+        }
+        // if property is a number, try to write a Double to a Number formatted column
+        else if (property.isNumber()) {
+          try {
+            double numValue = sample.getNumber(property);
+            if (property == Property.AGE) {
+              values[valueColIdx] = Math.floor(numValue);
+            }
+            else {
+              values[valueColIdx] = numValue;
+            }
+          } catch (NumberFormatException ex) {
+            sf_logger.debug("Input string is not number: {}", propValue);
+            values[valueColIdx] = propValue;
+          }
+        }
+        // otherwise, treat it like plain text
+        else {
+          values[valueColIdx] = propValue;
+        }
+      }
+      catch (Exception ex) {
+        sf_logger.error("Error writing data for sample {}, property {}", sample.getSubjectId(), property.getShortName());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Gets the number of projects rendered at the same time when writing all projects
+   */
+  public int getThreads() {
+    return m_threads;
+  }
+
+  public void setThreads(int threads) {
+    Preconditions.checkArgument(threads > 0, "Thread count must be positive: %s", threads);
+    m_threads = threads;
+  }
+
   public String getSheetName() {
     return DATA_SHEET_NAME;
   }
@@ -0,0 +1,160 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes report rows to a delimited text file, optionally gzip compressed. This is used by {@link AbstractReport} in
+ * place of an Excel workbook when a {@link Format} is set. Rows are written straight through a buffer so nothing is
+ * kept in memory.
+ *
+ * Values that contain the delimiter, a quote, or a line break are quoted (and their quotes doubled) the same way for
+ * both formats. {@link Double} values are written in plain notation without trailing zeros, so whole numbers don't
+ * get a <code>.0</code>.
+ *
+ * @author Ryan Whaley
+ */
+public class DelimitedReportWriter implements Closeable {
+  private static final int sf_bufferSize = 1 << 16;
+
+  /**
+   * The delimited formats a report can be written in
+   */
+  public enum Format {
+    CSV(',', "csv"),
+    TSV('\t', "tsv");
+
+    private final char m_delimiter;
+    private final String m_extension;
+
+    Format(char delimiter, String extension) {
+      m_delimiter = delimiter;
+      m_extension = extension;
+    }
+
+    public char getDelimiter() {
+      return m_delimiter;
+    }
+
+    /**
+     * Gets the file extension for this format, without the leading dot
+     */
+    public String getExtension() {
+      return m_extension;
+    }
+  }
+
+  private final Format m_format;
+  private final Writer m_writer;
+
+  /**
+   * Constructor. Opens the file for writing, it will be overwritten if it already exists.
+   * @param file the file to write to
+   * @param format the format to write in
+   * @param gzip true to gzip compress the file
+   * @throws IOException if the file can't be opened
+   */
+  public DelimitedReportWriter(File file, Format format, boolean gzip) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(format);
+    m_format = format;
+
+    OutputStream out = new FileOutputStream(file);
+    if (gzip) {
+      out = new GZIPOutputStream(out, sf_bufferSize);
+    }
+    m_writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), sf_bufferSize);
+  }
+
+  /**
+   * Gets the name a file should have when written in the given format, replacing any extension it already has
+   * @param file the file as it would be named for an Excel report
+   * @param format the format the file will be written in
+   * @param gzip true if the file will be gzip compressed
+   * @return the renamed file
+   */
+  public static File getFile(File file, Format format, boolean gzip) {
+    String name = file.getName();
+    int dotIdx = name.lastIndexOf('.');
+    if (dotIdx > 0) {
+      name = name.substring(0, dotIdx);
+    }
+    name += "." + format.getExtension() + (gzip ? ".gz" : "");
+    return new File(file.getParentFile(), name);
+  }
+
+  /**
+   * Writes a row of values. Values can be a {@link String} or a {@link Double}, nulls are written as empty values.
+   * @param values an array of values
+   * @throws IOException if the file can't be written to
+   */
+  public void writeRow(Object[] values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        m_writer.write(m_format.getDelimiter());
+      }
+      if (values[i] instanceof Double) {
+        m_writer.write(formatNumber((Double)values[i]));
+      }
+      else if (values[i] != null) {
+        writeText(values[i].toString());
+      }
+    }
+    m_writer.write('\n');
+  }
+
+  /**
+   * Writes the text, quoting it if it has the delimiter, a quote, or a line break in it
+   */
+  private void writeText(String text) throws IOException {
+    boolean quote = false;
+    for (int i = 0; i < text.length() && !quote; i++) {
+      char c = text.charAt(i);
+      quote = c == m_format.getDelimiter() || c == '"' || c == '\n' || c == '\r';
+    }
+
+    if (quote) {
+      m_writer.write('"');
+      m_writer.write(text.replace("\"", "\"\""));
+      m_writer.write('"');
+    }
+    else {
+      m_writer.write(text);
+    }
+  }
+
+  /**
+   * Formats a number in plain notation without trailing zeros
+   * @param value a number
+   * @return the number as text, NaN and infinite values are written the way {@link Double#toString(double)} does
+   */
+  static String formatNumber(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return Double.toString(value);
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long)value);
+    }
+    return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * Flushes the remaining rows and closes the file
+   * @throws IOException if the file can't be written to
+   */
+  @Override
+  public void close() throws IOException {
+    m_writer.close();
+  }
+}
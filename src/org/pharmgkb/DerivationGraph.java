@@ -0,0 +1,278 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * A set of rules that derive {@link Property} values for a {@link Sample} from other property values. Each rule
+ * declares the properties it reads and the properties it writes and the graph orders the rules so that:
+ * <ul>
+ *   <li>a rule that reads a property runs after every rule that writes it, wherever it was declared</li>
+ *   <li>rules that write the same property run in the order they were declared, so a rule that reads and writes a
+ *   property sees what earlier declared writers left</li>
+ * </ul>
+ * Rules that don't depend on each other run in the order they were declared. Two rules that each need the other's
+ * output are a cycle and the graph can't be built. The rules can all be run or, when only some inputs have changed, just the rules downstream of those
+ * inputs can be run.
+ *
+ * @author Ryan Whaley
+ */
+public class DerivationGraph {
+  private final List<Rule> m_rules;
+
+  private DerivationGraph(List<Rule> declaredRules) {
+    m_rules = ImmutableList.copyOf(sort(declaredRules));
+  }
+
+  /**
+   * Makes a new builder to declare rules with
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Runs every rule on the sample
+   * @param sample the sample to derive values for
+   */
+  public void evaluate(Sample sample) {
+    for (Rule rule : m_rules) {
+      rule.m_action.accept(sample);
+    }
+  }
+
+  /**
+   * Runs only the rules that read one of the changed properties, or that read a property written by another rule that
+   * was run. Outputs of fallback rules that aren't in <code>changed</code> are cleared before the rule runs.
+   * @param sample the sample to derive values for
+   * @param changed the properties that have changed since the rules were last run
+   * @return the names of the rules that were run
+   */
+  public List<String> evaluate(Sample sample, Set<Property> changed) {
+    List<String> evaluated = Lists.newArrayList();
+    for (Rule rule : getDownstreamRules(changed)) {
+      if (rule.isFallback()) {
+        // the stored outputs were derived from the old inputs, clear them so they're calculated again
+        for (Property output : rule.getOutputs()) {
+          if (!changed.contains(output)) {
+            sample.addProperty(output, null);
+          }
+        }
+      }
+      rule.m_action.accept(sample);
+      evaluated.add(rule.getName());
+    }
+    return evaluated;
+  }
+
+  /**
+   * Gets the rules, in the order they'll run, that have to be run when the given properties change
+   * @param changed the properties that have changed
+   * @return a List of rules in evaluation order
+   */
+  public List<Rule> getDownstreamRules(Set<Property> changed) {
+    Set<Property> dirty = changed.isEmpty() ? EnumSet.noneOf(Property.class) : EnumSet.copyOf(changed);
+    List<Rule> downstream = Lists.newArrayList();
+    for (Rule rule : m_rules) {
+      if (!Collections.disjoint(rule.getInputs(), dirty)) {
+        downstream.add(rule);
+        dirty.addAll(rule.getOutputs());
+      }
+    }
+    return downstream;
+  }
+
+  /**
+   * Gets all the rules in the order they'll run
+   */
+  public List<Rule> getRules() {
+    return m_rules;
+  }
+
+  /**
+   * Topologically sorts the rules by the dependencies between them, rules that don't depend on each other stay in the
+   * order they were declared
+   * @throws IllegalStateException if the rules have a cycle
+   */
+  private static List<Rule> sort(List<Rule> rules) {
+    int size = rules.size();
+    List<Set<Integer>> edges = Lists.newArrayListWithCapacity(size);
+    int[] inDegree = new int[size];
+    for (int i = 0; i < size; i++) {
+      edges.add(new TreeSet<>());
+    }
+
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < size; j++) {
+        if (i != j && rules.get(i).mustRunBefore(rules.get(j), i < j) && edges.get(i).add(j)) {
+          inDegree[j]++;
+        }
+      }
+    }
+
+    // rules with no unsorted dependencies, lowest declaration index first
+    TreeSet<Integer> ready = new TreeSet<>();
+    for (int i = 0; i < size; i++) {
+      if (inDegree[i] == 0) {
+        ready.add(i);
+      }
+    }
+
+    List<Rule> sorted = Lists.newArrayListWithCapacity(size);
+    while (!ready.isEmpty()) {
+      int idx = ready.pollFirst();
+      sorted.add(rules.get(idx));
+      for (int next : edges.get(idx)) {
+        if (--inDegree[next] == 0) {
+          ready.add(next);
+        }
+      }
+    }
+
+    if (sorted.size() < size) {
+      List<Rule> cycle = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        if (inDegree[i] > 0) {
+          cycle.add(rules.get(i));
+        }
+      }
+      throw new IllegalStateException("Derivation rules have a cycle: " + cycle);
+    }
+    return sorted;
+  }
+
+  /**
+   * A single derivation rule
+   */
+  public static class Rule {
+    private final String m_name;
+    private final Set<Property> m_inputs;
+    private final Set<Property> m_outputs;
+    private final Consumer<Sample> m_action;
+    private final boolean m_fallback;
+
+    private Rule(String name, Collection<Property> inputs, Collection<Property> outputs, Consumer<Sample> action,
+        boolean fallback) {
+      m_name = name;
+      m_inputs = Collections.unmodifiableSet(toEnumSet(inputs));
+      m_outputs = Collections.unmodifiableSet(toEnumSet(outputs));
+      m_action = action;
+      m_fallback = fallback;
+    }
+
+    public String getName() {
+      return m_name;
+    }
+
+    /**
+     * Gets the properties this rule reads
+     */
+    public Set<Property> getInputs() {
+      return m_inputs;
+    }
+
+    /**
+     * Gets the properties this rule writes
+     */
+    public Set<Property> getOutputs() {
+      return m_outputs;
+    }
+
+    /**
+     * Does this rule only fill in outputs that don't already have a value
+     */
+    public boolean isFallback() {
+      return m_fallback;
+    }
+
+    /**
+     * Does this rule have to run before the given rule. It does if the other rule reads something this rule writes and
+     * doesn't write itself. Rules that write the same property run in declaration order, the later one sees the value
+     * the earlier one left.
+     * @param other another rule
+     * @param declaredFirst was this rule declared before the other rule
+     */
+    private boolean mustRunBefore(Rule other, boolean declaredFirst) {
+      if (declaredFirst && !Collections.disjoint(m_outputs, other.m_outputs)) {
+        return true;
+      }
+      EnumSet<Property> read = toEnumSet(other.m_inputs);
+      read.removeAll(other.m_outputs);
+      return !Collections.disjoint(m_outputs, read);
+    }
+
+    private static EnumSet<Property> toEnumSet(Collection<Property> properties) {
+      return properties.isEmpty() ? EnumSet.noneOf(Property.class) : EnumSet.copyOf(properties);
+    }
+
+    @Override
+    public String toString() {
+      return m_name;
+    }
+  }
+
+  /**
+   * Collects rules and builds the graph from them
+   */
+  public static class Builder {
+    private final List<Rule> m_rules = Lists.newArrayList();
+
+    private Builder() {
+    }
+
+    /**
+     * Declares a rule
+     * @param name a name for the rule, used in logging
+     * @param inputs the properties the rule reads
+     * @param outputs the properties the rule writes
+     * @param action the code that reads the inputs from a sample and writes the outputs to it
+     * @return this builder
+     */
+    public Builder add(String name, Collection<Property> inputs, Collection<Property> outputs, Consumer<Sample> action) {
+      return add(name, inputs, outputs, action, false);
+    }
+
+    /**
+     * Declares a rule that keeps an output that already has a value, e.g. one that was submitted, and only calculates
+     * it when it's missing. When the rule is run again because its inputs changed, any output that didn't change along
+     * with them is cleared first so it's calculated from the new inputs instead of being kept.
+     * @param name a name for the rule, used in logging
+     * @param inputs the properties the rule reads
+     * @param outputs the properties the rule writes
+     * @param action the code that reads the inputs from a sample and writes the outputs to it
+     * @return this builder
+     */
+    public Builder addFallback(String name, Collection<Property> inputs, Collection<Property> outputs,
+        Consumer<Sample> action) {
+      return add(name, inputs, outputs, action, true);
+    }
+
+    private Builder add(String name, Collection<Property> inputs, Collection<Property> outputs, Consumer<Sample> action,
+        boolean fallback) {
+      Preconditions.checkNotNull(name);
+      Preconditions.checkNotNull(action);
+      Preconditions.checkArgument(!outputs.isEmpty(), "Rule %s doesn't write any properties", name);
+      m_rules.add(new Rule(name, inputs, outputs, action, fallback));
+      return this;
+    }
+
+    /**
+     * Builds the graph
+     * @throws IllegalStateException if the rules have a cycle
+     */
+    public DerivationGraph build() {
+      return new DerivationGraph(m_rules);
+    }
+  }
+}
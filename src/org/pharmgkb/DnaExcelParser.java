@@ -84,7 +84,7 @@ public class DnaExcelParser extends SupplementalParser {
                       try {
                         Cell cell = row.getCell(propIdx);
                         String propValue = ExcelUtils.getStringValue(cell, getEvaluator());
-                        sample.getProperties().put(sf_columnMap.get(propIdx), propValue);
+                        sample.addProperty(sf_columnMap.get(propIdx), propValue);
                       }
                       catch (Exception ex) {
                         throw new PgkbException("Error in column "+propIdx+" ("+sf_columnMap.get(propIdx)+")", ex);
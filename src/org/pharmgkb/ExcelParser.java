@@ -1,5 +1,6 @@
 package org.pharmgkb;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.ss.usermodel.*;
@@ -8,6 +9,7 @@ import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.model.Sample;
 import org.pharmgkb.util.ExcelUtils;
 import org.pharmgkb.util.HibernateUtils;
+import org.pharmgkb.util.StreamingSheetReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,9 +28,16 @@ import java.util.regex.Pattern;
 public class ExcelParser {
   private static final Pattern sf_projectFilenameRegex = Pattern.compile("project(\\d+).xlsx");
   private static final Logger sf_logger = LoggerFactory.getLogger(ExcelParser.class);
+  private static final String sf_deleteProjectProperties =
+      "delete from properties where subject_id in (select subject_id from samples where project=:pid)";
+  private static final String sf_deleteProjectSampleSources =
+      "delete from samplesources where subject_id in (select subject_id from samples where project=:pid)";
+  private static final String sf_deleteProjectSamples = "delete from samples where project=:pid";
   private File m_file = null;
   private Workbook m_workbook = null;
   private Sheet m_dataSheet = null;
+  private boolean m_streaming = false;
+  private boolean m_copyLoading = false;
 
   /**
    * Default constructor. This will make a parser for the blank template file, only good for analyzing column headers.
@@ -47,6 +56,18 @@ public class ExcelParser {
     init(file);
   }
 
+  /**
+   * Constructor. This will make a parser for the given template file, assumed to contain sample data.
+   * @param file an Excel file (.xlsx) containing sample data
+   * @param streaming true to read rows one at a time while parsing instead of loading the whole workbook into memory,
+   * only .xlsx files can be streamed
+   * @throws Exception can occur from File IO
+   */
+  public ExcelParser(File file, boolean streaming) throws Exception {
+    m_streaming = streaming;
+    init(file);
+  }
+
   /**
    * Initialize all the internal properties for this instance
    * @param file the file to parse
@@ -58,6 +79,13 @@ public class ExcelParser {
     }
     setFile(file);
 
+    if (isStreaming()) {
+      if (!StreamingSheetReader.hasSheet(file, CombinedDataReport.DATA_SHEET_NAME)) {
+        throw new Exception("Required worksheet "+CombinedDataReport.DATA_SHEET_NAME+" not found");
+      }
+      return;
+    }
+
     try(InputStream inputStream = new FileInputStream(file)) {
       setWorkbook(WorkbookFactory.create(inputStream));
     }
@@ -68,25 +96,49 @@ public class ExcelParser {
     }
   }
 
+  /**
+   * Deletes all the subjects for the project this file is for, along with their properties and sample sources.
+   * @throws PgkbException can occur if the file name doesn't have the project number in it
+   */
   public void clearSubjects() throws PgkbException {
-    Matcher m = sf_projectFilenameRegex.matcher(getFile().getName());
+    clearProject(getProjectId(getFile()));
+  }
+
+  /**
+   * Gets the project number from the name of a submission file, e.g. <code>project7.xlsx</code>
+   * @param file a submission file
+   * @return the project number
+   * @throws PgkbException if the file name doesn't have the project number in it
+   */
+  public static Integer getProjectId(File file) throws PgkbException {
+    Matcher m = sf_projectFilenameRegex.matcher(file.getName());
     if (!m.matches()) {
-      throw new PgkbException("Project name not in right format "+getFile());
+      throw new PgkbException("Project name not in right format "+file);
     }
+    return Integer.valueOf(m.group(1));
+  }
 
+  /**
+   * Deletes all the subjects for the given project, along with their properties and sample sources. The rows are
+   * deleted with one statement per table in a single transaction instead of deleting each subject through Hibernate.
+   * @param projectId the project to delete subjects for
+   */
+  public static void clearProject(Integer projectId) {
     Session session = null;
-    Integer projectId = Integer.valueOf(m.group(1));
     sf_logger.info("Clearing subjects for project "+projectId);
 
     try {
       session = HibernateUtils.getSession();
-      List rez = session.createQuery("select s.id from Sample s where s.project=:pid")
-              .setInteger("pid", Integer.valueOf(m.group(1))).list();
-      for (Object result : rez) {
-        session.delete(session.get(Sample.class, (String)result));
-      }
+      // child tables first so nothing references the samples when they're deleted
+      int propertyCount = session.createSQLQuery(sf_deleteProjectProperties)
+          .setInteger("pid", projectId).executeUpdate();
+      int sourceCount = session.createSQLQuery(sf_deleteProjectSampleSources)
+          .setInteger("pid", projectId).executeUpdate();
+      int sampleCount = session.createSQLQuery(sf_deleteProjectSamples)
+          .setInteger("pid", projectId).executeUpdate();
       HibernateUtils.commit(session);
-      sf_logger.info("Removed "+rez.size()+" records");
+      HibernateUtils.evictSamples();
+      sf_logger.info("Removed "+sampleCount+" records ("+propertyCount+" properties, "+sourceCount+" sample sources)");
     }
     finally {
       HibernateUtils.close(session);
@@ -96,17 +148,30 @@ public class ExcelParser {
   /**
    * Parses sample data from the excel workbook and saves it to the database. Will copy the input file to the specified
    * output file.
-   * @throws Exception can occur from DB or IO
+   * @return the number of subjects saved to the database
+   * @throws Exception can occur from DB or IO, nothing from the workbook is saved if it does
    */
-  public void parse() throws Exception {
+  public int parse() throws Exception {
     sf_logger.info("Parsing excel workbook "+getFile());
 
-    SubjectIterator subjectIterator = new SubjectIterator(getDataSheet());
     Session session = null;
+    StreamingSheetReader reader = null;
+    int savedCount = 0;
 
     try {
+      SubjectIterator subjectIterator;
+      if (isStreaming()) {
+        reader = new StreamingSheetReader(getFile(), CombinedDataReport.DATA_SHEET_NAME);
+        subjectIterator = new SubjectIterator(reader);
+      }
+      else {
+        subjectIterator = new SubjectIterator(getDataSheet());
+      }
+
       session = HibernateUtils.getSession();
       subjectIterator.parseHeading(session);
+      int flushSize = HibernateUtils.getFlushSize();
+      SampleCopyLoader copyLoader = isCopyLoading() ? new SampleCopyLoader(session) : null;
 
       while (subjectIterator.hasNext()) {
         Sample sample = subjectIterator.next();
@@ -115,17 +180,41 @@ public class ExcelParser {
           sf_logger.debug("Loaded subject: "+ sample.getSubjectId());
         }
 
+        if (copyLoader != null) {
+          copyLoader.add(sample);
+          savedCount++;
+          continue;
+        }
+
         session.save(sample);
+        savedCount++;
+
+        if (flushSize > 0 && savedCount % flushSize == 0) {
+          // send the batched inserts now and keep the session from holding on to every sample in the workbook
+          session.flush();
+          session.clear();
+        }
+      }
+      if (copyLoader != null) {
+        copyLoader.flush();
       }
       HibernateUtils.commit(session);
+      if (copyLoader != null) {
+        // COPY goes around Hibernate so the cache doesn't know about the new rows
+        HibernateUtils.evictSamples();
+      }
       sf_logger.info("Processed "+subjectIterator.getCurrentRow()+" rows");
     }
     catch (Exception ex) {
-      sf_logger.error("Error saving subjects for "+getFile(), ex);
+      throw new PgkbException("Error saving subjects for "+getFile(), ex);
     }
     finally {
       HibernateUtils.close(session);
+      if (reader != null) {
+        reader.close();
+      }
     }
+    return savedCount;
   }
 
   /**
@@ -134,6 +223,7 @@ public class ExcelParser {
    * @return a List of String names for the properties in this sheet
    */
   public List<String> analyze() {
+    Preconditions.checkState(!isStreaming(), "Can't analyze a streamed workbook");
     List<String> titles = Lists.newArrayList();
     Row row = getDataSheet().getRow(1);
     for (Cell cell : row) {
@@ -162,6 +252,28 @@ public class ExcelParser {
     m_workbook = workbook;
   }
 
+  /**
+   * Is this parser reading the workbook one row at a time instead of loading it all in memory
+   */
+  public boolean isStreaming() {
+    return m_streaming;
+  }
+
+  /**
+   * Are parsed samples written with PostgreSQL COPY instead of being saved through Hibernate
+   */
+  public boolean isCopyLoading() {
+    return m_copyLoading;
+  }
+
+  /**
+   * Set to true to write parsed samples with PostgreSQL COPY using a {@link SampleCopyLoader}. This is much faster than
+   * saving through Hibernate but should only be used when the subjects in the file aren't in the DB yet.
+   */
+  public void setCopyLoading(boolean copyLoading) {
+    m_copyLoading = copyLoading;
+  }
+
   public Sheet getDataSheet() {
     return m_dataSheet;
   }
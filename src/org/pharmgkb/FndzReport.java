@@ -2,9 +2,6 @@ package org.pharmgkb;
 
 import com.google.common.collect.ImmutableList;
 import org.pharmgkb.enums.Property;
-import org.pharmgkb.exception.PgkbException;
-import org.pharmgkb.model.Sample;
-import org.pharmgkb.util.IcpcUtils;
 
 import java.io.File;
 import java.util.List;
@@ -18,6 +15,7 @@ public class FndzReport extends AbstractReport {
   private static final int sf_defaultColumnWidth = 20;
   private static final String sf_filename = "fndz.report.xlsx";
   private static final String sf_sheetName = "Subjects";
+  private static final CohortFilter sf_filter = CohortFilter.parse("RIKEN_ID != NA AND Project != 4");
 
   private static final List<Property> sf_columns = ImmutableList.of(
       Property.SUBJECT_ID,
@@ -209,14 +207,17 @@ public class FndzReport extends AbstractReport {
     setFile(new File(dir, sf_filename));
   }
 
-  public boolean includeSample(Sample sample) {
-    String rikenId = sample.getProperties().get(Property.RIKEN_ID);
-    return !IcpcUtils.isBlank(rikenId) && sample.getProject()!=4;
+  /**
+   * Include GWAS subjects (those with Riken IDs) from every project except project 4
+   */
+  @Override
+  public CohortFilter getDefaultFilter() {
+    return sf_filter;
   }
 
   @Override
-  public void generate() throws PgkbException {
-    writeSampleProperties(sf_columns);
+  public List<Property> getColumns() {
+    return sf_columns;
   }
 
   @Override
@@ -4,9 +4,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import org.pharmgkb.enums.Property;
 import org.pharmgkb.enums.Value;
-import org.pharmgkb.exception.PgkbException;
-import org.pharmgkb.model.Sample;
-import org.pharmgkb.util.IcpcUtils;
 
 import java.io.File;
 import java.util.List;
@@ -21,6 +18,8 @@ public class GwasReport extends AbstractReport {
   private static final int sf_defaultColumnWidth = 20;
   private static final String sf_filename = "gwas.report.xlsx";
   private static final String sf_sheetName = "Subjects";
+  private static final CohortFilter sf_filter =
+      CohortFilter.parse("RIKEN_ID != NA OR CGS = " + Value.Yes.getShortName());
   private static final List<Property> sf_columns = ImmutableList.of(
       Property.SUBJECT_ID,
       Property.RIKEN_ID,
@@ -76,19 +75,16 @@ public class GwasReport extends AbstractReport {
   }
 
   /**
-   * Include wither GWAS subjects (those withe Riken IDs) or CGS subjects (those with a CGS property of Yes)
-   * @param sample a {@link Sample} object to test for inclusion
-   * @return
+   * Include either GWAS subjects (those with Riken IDs) or CGS subjects (those with a CGS property of Yes)
    */
-  public boolean includeSample(Sample sample) {
-    String rikenId = sample.getProperties().get(Property.RIKEN_ID);
-    String cgs = sample.getProperties().get(Property.CGS);
-    return !IcpcUtils.isBlank(rikenId) || (cgs != null && cgs.equals(Value.Yes.getShortName()));
+  @Override
+  public CohortFilter getDefaultFilter() {
+    return sf_filter;
   }
 
   @Override
-  public void generate() throws PgkbException {
-    writeSampleProperties(sf_columns);
+  public List<Property> getColumns() {
+    return sf_columns;
   }
 
   public String getSheetName() {
@@ -2,7 +2,6 @@ package org.pharmgkb;
 
 import com.google.common.collect.ImmutableList;
 import org.pharmgkb.enums.Property;
-import org.pharmgkb.exception.PgkbException;
 
 import java.io.File;
 import java.util.List;
@@ -38,8 +37,8 @@ public class MaceReport extends AbstractReport {
   }
   
   @Override
-  public void generate() throws PgkbException {
-    writeSampleProperties(sf_columns);
+  public List<Property> getColumns() {
+    return sf_columns;
   }
 
   @Override
@@ -0,0 +1,202 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.Session;
+import org.pharmgkb.exception.PgkbException;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.HibernateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates several {@link AbstractReport} files from one read of the {@link Sample} objects in the DB.
+ *
+ * Each sample is read once and handed to every report's <code>includeSample</code> and <code>renderSample</code>
+ * methods on the reading thread. The rendered rows are then passed through a bounded queue to a writer thread for each
+ * report, so every workbook is written on its own thread and a slow workbook only holds up the read once its queue is
+ * full.
+ *
+ * @author Ryan Whaley
+ */
+public class MultiReportGenerator {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  /** marks the end of the rows in a report's queue */
+  private static final Object[] sf_endOfRows = new Object[0];
+
+  private final List<AbstractReport> m_reports;
+  private int m_queueSize = DEFAULT_QUEUE_SIZE;
+
+  /**
+   * Constructor
+   * @param reports the reports to generate, at least one is required
+   */
+  public MultiReportGenerator(List<AbstractReport> reports) {
+    Preconditions.checkArgument(reports != null && reports.size() > 0, "No reports to generate");
+    m_reports = ImmutableList.copyOf(reports);
+  }
+
+  /**
+   * Reads all samples once and writes every report. A report that fails doesn't stop the others, all failures are
+   * reported once every report has been written.
+   * @throws PgkbException if reading the samples or writing any of the reports failed
+   */
+  public void generate() throws PgkbException {
+    sf_logger.info("starting {} reports", m_reports.size());
+
+    Session session = null;
+    ExecutorService executor = Executors.newFixedThreadPool(m_reports.size(),
+        new ThreadFactoryBuilder().setNameFormat("report-writer-%d").build());
+    Map<AbstractReport,Future<Integer>> results = Maps.newLinkedHashMap();
+    try {
+      session = HibernateUtils.getSession();
+
+      Map<AbstractReport,BlockingQueue<Object[]>> queues = Maps.newLinkedHashMap();
+      for (AbstractReport report : m_reports) {
+        // headers are written before the writer starts so the writer is the only thread touching the workbook after
+        report.writeHeader(session);
+        BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(m_queueSize);
+        queues.put(report, queue);
+        results.put(report, executor.submit(() -> writeRows(report, queue)));
+      }
+
+      SampleBatchIterator sampleIterator = iterateSamples(session);
+      int sampleCount = 0;
+      while (sampleIterator.hasNext()) {
+        Sample sample = sampleIterator.next();
+        for (AbstractReport report : m_reports) {
+          if (report.includeSample(sample)) {
+            queues.get(report).put(report.renderSample(sample));
+          }
+        }
+        sampleCount++;
+      }
+      for (BlockingQueue<Object[]> queue : queues.values()) {
+        queue.put(sf_endOfRows);
+      }
+      sf_logger.info("read {} samples", sampleCount);
+
+      List<String> failures = Lists.newArrayList();
+      for (AbstractReport report : results.keySet()) {
+        try {
+          int rowCount = results.get(report).get();
+          sf_logger.info("wrote {} rows to {}", rowCount, report.getFile());
+        }
+        catch (ExecutionException ex) {
+          sf_logger.error("Couldn't write "+report.getFile(), ex.getCause());
+          failures.add(report.getClass().getSimpleName());
+        }
+      }
+      if (failures.size() > 0) {
+        throw new PgkbException("Couldn't write "+failures.size()+" reports: "+failures);
+      }
+    }
+    catch (PgkbException ex) {
+      throw ex;
+    }
+    catch (Exception ex) {
+      throw new PgkbException("Error writing reports", ex);
+    }
+    finally {
+      executor.shutdownNow();
+      // reports with a writer close their own file, the rest may have failed partway through their header
+      for (AbstractReport report : m_reports) {
+        if (!results.containsKey(report)) {
+          report.closeUnsaved();
+        }
+      }
+      HibernateUtils.close(session);
+    }
+    sf_logger.info("done with {} reports", m_reports.size());
+  }
+
+  /**
+   * Takes rows off the queue and writes them to the report until the end of the rows, then saves the report. If a row
+   * can't be written the rest of the queue is still drained so the reading thread doesn't block on it, and the
+   * unfinished file is closed.
+   * @return the number of rows written
+   */
+  private static int writeRows(AbstractReport report, BlockingQueue<Object[]> queue) throws Exception {
+    int rowCount = 0;
+    Exception failure = null;
+    Object[] values;
+    try {
+      while ((values = queue.take()) != sf_endOfRows) {
+        if (failure == null) {
+          try {
+            report.writeRow(values);
+            rowCount++;
+          }
+          catch (Exception ex) {
+            failure = ex;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      report.save();
+      return rowCount;
+    }
+    finally {
+      report.closeUnsaved();
+    }
+  }
+
+  /**
+   * Makes an iterator over the samples any of the reports could include. If every report has a filter only the
+   * subjects that match at least one of them are loaded.
+   */
+  private SampleBatchIterator iterateSamples(Session session) {
+    List<CohortFilter> filters = Lists.newArrayList();
+    for (AbstractReport report : m_reports) {
+      filters.add(report.getFilter());
+    }
+    CohortFilter filter = CohortFilter.or(filters);
+    if (filter == null) {
+      return new SampleBatchIterator(session, getProject(), SampleBatchIterator.DEFAULT_FETCH_SIZE, true);
+    }
+    return new SampleBatchIterator(session, filter.lookupSubjectIds(session, getProject()),
+        SampleBatchIterator.DEFAULT_FETCH_SIZE, true);
+  }
+
+  /**
+   * Gets the project to read samples from. This is only limited when every report is limited to the same project,
+   * otherwise all samples are read and each report filters them in <code>includeSample</code>.
+   */
+  private Integer getProject() {
+    Integer project = m_reports.get(0).getProject();
+    for (AbstractReport report : m_reports) {
+      if (project == null || !project.equals(report.getProject())) {
+        return null;
+      }
+    }
+    return project;
+  }
+
+  /**
+   * Gets the number of rendered rows that can be waiting to be written to each report
+   */
+  public int getQueueSize() {
+    return m_queueSize;
+  }
+
+  public void setQueueSize(int queueSize) {
+    Preconditions.checkArgument(queueSize > 0, "Queue size must be positive: %s", queueSize);
+    m_queueSize = queueSize;
+  }
+}
@@ -56,7 +56,7 @@ public class RikenParser extends SupplementalParser {
         for (Integer colIdx : sf_columnMap.keySet()) {
           Cell cell = row.getCell(colIdx);
           String cellValue = ExcelUtils.getStringValue(cell, getEvaluator());
-          sample.getProperties().put(sf_columnMap.get(colIdx), cellValue);
+          sample.addProperty(sf_columnMap.get(colIdx), cellValue);
         }
       }
       HibernateUtils.commit(session);
@@ -0,0 +1,204 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.hibernate.Cache;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.criterion.CriteriaSpecification;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.pharmgkb.model.Sample;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over {@link Sample} objects in the DB ordered by project and subject ID. Instead of getting each sample one
+ * at a time (which also loads its properties one at a time) this loads samples in chunks with their properties fetched
+ * in the same query, so there's one query per chunk instead of several per sample.
+ *
+ * The session is cleared before each new chunk is loaded so memory is bounded by the fetch size, not the size of the
+ * cohort. This means samples from a previous chunk are detached once the iterator moves past them. If the iterator is
+ * not read-only the session is flushed before it's cleared so changes made to samples are saved.
+ *
+ * When the second-level cache is turned on, samples that are already cached with their properties are read from the
+ * cache and only the rest are queried. The subject ID lists are cached in the {@link #SUBJECT_ID_CACHE_REGION} query
+ * cache region.
+ *
+ * @author Ryan Whaley
+ */
+public class SampleBatchIterator implements Iterator<Sample> {
+  public static final int DEFAULT_FETCH_SIZE = 500;
+  public static final String SUBJECT_ID_CACHE_REGION = "sampleIds";
+  private static final String sf_propertiesRole = Sample.class.getName() + ".properties";
+  private static final String sf_chunkQuery =
+      "from Sample s left join fetch s.properties where s.subjectId in (:ids)";
+
+  private final Session m_session;
+  private final List<String> m_subjectIds;
+  private final int m_fetchSize;
+  private final boolean m_readOnly;
+  private int m_nextIdIdx = 0;
+  private Iterator<Sample> m_chunk = Iterators.emptyIterator();
+
+  /**
+   * Constructor for a read-only iterator over all samples in the DB using the default fetch size
+   * @param session the session to load samples with
+   */
+  public SampleBatchIterator(Session session) {
+    this(session, (Integer)null, DEFAULT_FETCH_SIZE, true);
+  }
+
+  /**
+   * Constructor
+   * @param session the session to load samples with
+   * @param project the project to limit samples to, null for all projects
+   * @param fetchSize the number of samples to load at a time
+   * @param readOnly true if the samples won't be changed, false to flush changes to the DB as chunks are finished
+   */
+  public SampleBatchIterator(Session session, Integer project, int fetchSize, boolean readOnly) {
+    this(session, lookupSubjectIds(session, project), fetchSize, readOnly);
+  }
+
+  /**
+   * Constructor
+   * @param session the session to load samples with
+   * @param subjectIds the IDs of the subjects to load, in the order they should be iterated
+   * @param fetchSize the number of samples to load at a time
+   * @param readOnly true if the samples won't be changed, false to flush changes to the DB as chunks are finished
+   */
+  public SampleBatchIterator(Session session, List<String> subjectIds, int fetchSize, boolean readOnly) {
+    Preconditions.checkNotNull(session);
+    Preconditions.checkNotNull(subjectIds);
+    Preconditions.checkArgument(fetchSize > 0, "Fetch size must be positive: %s", fetchSize);
+
+    m_session = session;
+    m_subjectIds = subjectIds;
+    m_fetchSize = fetchSize;
+    m_readOnly = readOnly;
+  }
+
+  /**
+   * Gets the IDs of subjects in the DB ordered by project and subject ID
+   * @param session the session to query with
+   * @param project the project to limit subjects to, null for all projects
+   * @return a List of subject IDs
+   */
+  public static List<String> lookupSubjectIds(Session session, Integer project) {
+    Query query;
+    if (project == null) {
+      query = session.createQuery("select s.subjectId from Sample s order by s.project, s.subjectId");
+    }
+    else {
+      query = session.createQuery("select s.subjectId from Sample s where s.project=:pid order by s.subjectId")
+          .setInteger("pid", project);
+    }
+    //noinspection unchecked
+    return query.setCacheable(true).setCacheRegion(SUBJECT_ID_CACHE_REGION).list();
+  }
+
+  /**
+   * Gets the total number of samples this iterator will go through
+   */
+  public int size() {
+    return m_subjectIds.size();
+  }
+
+  /**
+   * Are there more samples. This may load the next chunk, which clears the session, since subjects whose IDs were looked
+   * up may have been deleted since and a whole chunk can come back empty.
+   */
+  @Override
+  public boolean hasNext() {
+    while (!m_chunk.hasNext() && m_nextIdIdx < m_subjectIds.size()) {
+      m_chunk = loadNextChunk();
+    }
+    return m_chunk.hasNext();
+  }
+
+  @Override
+  public Sample next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more samples");
+    }
+    return m_chunk.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove() not implemented for SampleBatchIterator");
+  }
+
+  /**
+   * Is the second-level cache turned on for the session's factory
+   */
+  private boolean isCacheEnabled() {
+    return ((SessionFactoryImplementor)m_session.getSessionFactory()).getSettings().isSecondLevelCacheEnabled();
+  }
+
+  /**
+   * Loads the samples for the next chunk of IDs
+   * @return an iterator of samples in the same order as their IDs, empty if they've all been deleted
+   */
+  private Iterator<Sample> loadNextChunk() {
+    List<String> ids = m_subjectIds.subList(m_nextIdIdx, Math.min(m_nextIdIdx + m_fetchSize, m_subjectIds.size()));
+    m_nextIdIdx += ids.size();
+    return loadChunk(ids).iterator();
+  }
+
+  /**
+   * Clears the session and loads samples with their properties
+   * @param ids the IDs of the subjects to load
+   * @return the samples in the same order as their IDs, subjects that aren't in the DB are left out
+   */
+  List<Sample> loadChunk(List<String> ids) {
+    if (!m_readOnly) {
+      m_session.flush();
+    }
+    m_session.clear();
+
+    Map<String,Sample> sampleMap = Maps.newHashMapWithExpectedSize(ids.size());
+    List<String> uncachedIds = ids;
+    if (isCacheEnabled()) {
+      // samples already in the second-level cache with their properties don't need to be queried
+      Cache cache = m_session.getSessionFactory().getCache();
+      uncachedIds = Lists.newArrayList();
+      for (String id : ids) {
+        if (cache.containsEntity(Sample.class, id) && cache.containsCollection(sf_propertiesRole, id)) {
+          Sample sample = (Sample)m_session.get(Sample.class, id);
+          if (sample != null) {
+            m_session.setReadOnly(sample, m_readOnly);
+            sampleMap.put(id, sample);
+            continue;
+          }
+        }
+        uncachedIds.add(id);
+      }
+    }
+
+    if (!uncachedIds.isEmpty()) {
+      //noinspection unchecked
+      List<Sample> results = m_session.createQuery(sf_chunkQuery)
+          .setParameterList("ids", uncachedIds)
+          .setReadOnly(m_readOnly)
+          .setResultTransformer(CriteriaSpecification.DISTINCT_ROOT_ENTITY)
+          .list();
+      for (Sample sample : results) {
+        sampleMap.put(sample.getSubjectId(), sample);
+      }
+    }
+
+    List<Sample> chunk = Lists.newArrayListWithCapacity(ids.size());
+    for (String id : ids) {
+      Sample sample = sampleMap.get(id);
+      if (sample != null) {
+        chunk.add(sample);
+      }
+    }
+    return chunk;
+  }
+}
@@ -0,0 +1,201 @@
+package org.pharmgkb;
+
+import com.google.common.base.Preconditions;
+import org.hibernate.Session;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.enums.SampleSource;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.ExtendedEnum;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * Bulk loader that writes {@link Sample} objects straight into the <code>samples</code>, <code>sampleSources</code> and
+ * <code>properties</code> tables with PostgreSQL <code>COPY FROM STDIN</code> instead of saving them through Hibernate.
+ * This is only meant for loading new subjects into emptied tables, it does no updates and the Hibernate session won't
+ * know about the rows it writes.
+ *
+ * Samples are buffered and sent to the DB in chunks so memory stays bounded no matter how many samples are loaded. The
+ * COPY statements run on the connection of the given session so they are part of its transaction and will be
+ * committed or rolled back with it.
+ *
+ * Values are written the same way the Hibernate mapping in {@link Sample} writes them: enums by their ID, property
+ * keys by their ordinal, and null property values are skipped.
+ *
+ * @author Ryan Whaley
+ */
+public class SampleCopyLoader {
+  private static final Logger sf_logger = LoggerFactory.getLogger(SampleCopyLoader.class);
+  private static final int sf_defaultChunkSize = 500;
+  private static final String sf_copySamples = "copy samples (subject_id, genotyping, phenotyping, project, gender, " +
+      "race_self, race_omb, ethnicity_reported, ethnicity_omb, country, age, included_in_gwas) from stdin";
+  private static final String sf_copySampleSources = "copy samplesources (subject_id, source) from stdin";
+  private static final String sf_copyProperties = "copy properties (subject_id, property_id, value) from stdin";
+  private static final String sf_null = "\\N";
+
+  private final Session m_session;
+  private final int m_chunkSize;
+  private final StringBuilder m_samples = new StringBuilder();
+  private final StringBuilder m_sampleSources = new StringBuilder();
+  private final StringBuilder m_properties = new StringBuilder();
+  private int m_bufferedCount = 0;
+  private int m_loadedCount = 0;
+
+  /**
+   * Constructor
+   * @param session the session to use the connection of, must be connected to a PostgreSQL DB
+   */
+  public SampleCopyLoader(Session session) {
+    this(session, sf_defaultChunkSize);
+  }
+
+  /**
+   * Constructor
+   * @param session the session to use the connection of, must be connected to a PostgreSQL DB
+   * @param chunkSize the number of samples to buffer before sending them to the DB
+   */
+  public SampleCopyLoader(Session session, int chunkSize) {
+    Preconditions.checkNotNull(session);
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive: %s", chunkSize);
+    m_session = session;
+    m_chunkSize = chunkSize;
+  }
+
+  /**
+   * Adds the sample to the load. It will be sent to the DB when the current chunk fills up or when {@link #flush()} is
+   * called.
+   * @param sample a sample to load, must have a subject ID
+   */
+  public void add(Sample sample) {
+    Preconditions.checkNotNull(sample);
+    Preconditions.checkNotNull(sample.getSubjectId(), "Sample has no subject ID");
+
+    appendSample(m_samples, sample);
+    if (sample.getSampleSource() != null) {
+      for (SampleSource source : sample.getSampleSource()) {
+        appendRow(m_sampleSources, sample.getSubjectId(), String.valueOf(source.getId()));
+      }
+    }
+    if (sample.getProperties() != null) {
+      for (Map.Entry<Property,String> entry : sample.getProperties().entrySet()) {
+        if (entry.getValue() != null) {
+          appendRow(m_properties, sample.getSubjectId(), String.valueOf(entry.getKey().ordinal()), entry.getValue());
+        }
+      }
+    }
+
+    m_bufferedCount++;
+    if (m_bufferedCount >= m_chunkSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Sends all buffered samples to the DB. This does not commit the transaction.
+   */
+  public void flush() {
+    if (m_bufferedCount == 0) {
+      return;
+    }
+
+    m_session.doWork(connection -> {
+      CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+      try {
+        // samples first so the references from properties are satisfied
+        copyManager.copyIn(sf_copySamples, new StringReader(m_samples.toString()));
+        copyManager.copyIn(sf_copySampleSources, new StringReader(m_sampleSources.toString()));
+        copyManager.copyIn(sf_copyProperties, new StringReader(m_properties.toString()));
+      }
+      catch (IOException ex) {
+        throw new RuntimeException("Error copying samples to DB", ex);
+      }
+    });
+
+    m_loadedCount += m_bufferedCount;
+    sf_logger.debug("Copied {} samples, {} total", m_bufferedCount, m_loadedCount);
+
+    m_samples.setLength(0);
+    m_sampleSources.setLength(0);
+    m_properties.setLength(0);
+    m_bufferedCount = 0;
+  }
+
+  /**
+   * Gets the number of samples that have been sent to the DB so far
+   */
+  public int getLoadedCount() {
+    return m_loadedCount;
+  }
+
+  /**
+   * Appends a line for the <code>samples</code> table in COPY text format
+   */
+  static void appendSample(StringBuilder sb, Sample sample) {
+    appendRow(sb,
+        sample.getSubjectId(),
+        enumId(sample.getGenotyping()),
+        enumId(sample.getPhenotyping()),
+        sample.getProject() == null ? null : String.valueOf(sample.getProject()),
+        enumId(sample.getGender()),
+        sample.getRaceself(),
+        sample.getRaceOMB(),
+        sample.getEthnicityreported(),
+        sample.getEthnicityOMB(),
+        sample.getCountry(),
+        sample.getAge() == null ? null : String.valueOf(sample.getAge()),
+        sample.isIncludedInGwas() ? "t" : "f");
+  }
+
+  /**
+   * Appends one line in COPY text format: tab-delimited, null as <code>\N</code>, newline terminated
+   */
+  static void appendRow(StringBuilder sb, String... values) {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append('\t');
+      }
+      appendValue(sb, values[i]);
+    }
+    sb.append('\n');
+  }
+
+  /**
+   * Appends a single value in COPY text format, escaping the characters that have a meaning in that format
+   */
+  static void appendValue(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append(sf_null);
+      return;
+    }
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  private static String enumId(Enum<?> value) {
+    return value == null ? null : String.valueOf(((ExtendedEnum)value).getId());
+  }
+}
@@ -10,6 +10,7 @@ import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.model.Sample;
 import org.pharmgkb.util.ExcelUtils;
 import org.pharmgkb.util.IcpcUtils;
+import org.pharmgkb.util.StreamingSheetReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +22,9 @@ import java.util.*;
  * parse the header rows of the Sheet to ensure all properties in the file are represented in the DB. All the cells in
  * each row are also checked for validity depending on rules based on the header property.
  *
+ * Rows can either come from a {@link Sheet} of a workbook that's been fully loaded into memory or from a
+ * {@link StreamingSheetReader} that reads one row at a time for large workbooks.
+ *
  * @author Ryan Whaley
  */
 public class SubjectIterator implements Iterator {
@@ -50,9 +54,104 @@ public class SubjectIterator implements Iterator {
   static {
     sf_knownSubstitutions.put("raw_pheno", Property.PHENO_RAW);
     sf_knownSubstitutions.put("std_pheno", Property.PHENO_STD);
+    sf_knownSubstitutions.put("VASP phosphorylation assay at baseline", Property.VASP);
   }
+  // rules for post-processing, each rule runs after the rules that write the properties it reads
+  private static final DerivationGraph sf_derivations = DerivationGraph.builder()
+      // BMI and the creatinine category are only calculated when they weren't submitted
+      .addFallback("BMI",
+          EnumSet.of(Property.BMI, Property.WEIGHT, Property.HEIGHT),
+          EnumSet.of(Property.BMI),
+          s -> s.addProperty(Property.BMI, IcpcUtils.calculateBmi(s)))
+      .add("creatinine",
+          EnumSet.of(Property.CREATININE, Property.PROJECT),
+          EnumSet.of(Property.CREATININE),
+          s -> s.addProperty(Property.CREATININE, IcpcUtils.convertCreatinine(s)))
+      .addFallback("creatinine category",
+          EnumSet.of(Property.CREATININE_CAT, Property.CREATININE),
+          EnumSet.of(Property.CREATININE_CAT),
+          s -> s.addProperty(Property.CREATININE_CAT, IcpcUtils.calculateCreatinineCat(s)))
+      // set race properly using all available info
+      .add("race",
+          EnumSet.of(Property.RACE_OMB, Property.RACE_SELF, Property.ETHNICITY_OMB, Property.ETHNICITY_REPORTED),
+          EnumSet.of(Property.RACE_OMB),
+          s -> {
+            String ombRace = s.calculateRace();
+            s.setRaceOMB(ombRace);
+            s.addProperty(Property.RACE_OMB, ombRace);
+          })
+      // if subject currently smokes, then they have smoked
+      .add("ever smoked",
+          EnumSet.of(Property.CURRENT_SMOKER),
+          EnumSet.of(Property.EVER_SMOKED),
+          s -> {
+            String currentSmoker = s.getProperties().get(Property.CURRENT_SMOKER);
+            if (currentSmoker != null && currentSmoker.equals(Value.Yes.getShortName())) {
+              s.addProperty(Property.EVER_SMOKED, Value.Yes.getShortName());
+            }
+          })
+      .add("LVEF",
+          EnumSet.of(Property.LVEF, Property.LVEF_AVAIL, Property.PROJECT),
+          EnumSet.of(Property.LVEF, Property.LVEF_AVAIL, Property.LVEF_CATEGORY),
+          SubjectIterator::deriveLvef)
+      .add("event times",
+          union(sf_eventTimeMap.keySet(), Property.DURATION_FOLLOWUP_CLINICAL_OUTCOMES),
+          sf_eventTimeMap.values(),
+          SubjectIterator::deriveEventTimes)
+      // impute MI value from STEMI and NSTEMI values
+      .add("MI during followup",
+          EnumSet.of(Property.STEMI, Property.NSTEMI),
+          EnumSet.of(Property.MI_DURING_FOLLOWUP),
+          s -> s.addProperty(Property.MI_DURING_FOLLOWUP, IcpcUtils.calculateMiDuringFollowup(
+              s.getProperties().get(Property.STEMI), s.getProperties().get(Property.NSTEMI))))
+      // fix the problem with caucasiens
+      .add("race self",
+          EnumSet.of(Property.RACE_SELF),
+          EnumSet.of(Property.RACE_SELF),
+          s -> {
+            String raceSelf = s.getProperties().get(Property.RACE_SELF);
+            if (!IcpcUtils.isBlank(raceSelf) && raceSelf.equals("caucasien")) {
+              // the race rule reads the field, not the property
+              s.setRaceself("caucasian");
+              s.addProperty(Property.RACE_SELF, "caucasian");
+            }
+          })
+      // white counts from projects need to be multiplied by 1k
+      .add("white cell count",
+          EnumSet.of(Property.WHITE_CELL_COUNT),
+          EnumSet.of(Property.WHITE_CELL_COUNT),
+          s -> deriveCount(s, Property.WHITE_CELL_COUNT, 1000, 1000))
+      // red counts from projects need to be multiplied by 1m
+      .add("red cell count",
+          EnumSet.of(Property.RED_CELL_COUNT),
+          EnumSet.of(Property.RED_CELL_COUNT),
+          SubjectIterator::deriveRedCellCount)
+      // platelet counts from projects need to be multiplied by 1k
+      .add("platelet count",
+          EnumSet.of(Property.PLATELET_COUNT),
+          EnumSet.of(Property.PLATELET_COUNT),
+          s -> deriveCount(s, Property.PLATELET_COUNT, 1000, 1000))
+      // correct type "0" stent thrombosis to "NA"
+      .add("stent thrombosis type",
+          EnumSet.of(Property.TYPE_STENT_THROMB),
+          EnumSet.of(Property.TYPE_STENT_THROMB),
+          s -> {
+            String stentType = s.getProperties().get(Property.TYPE_STENT_THROMB);
+            if (!IcpcUtils.isBlank(stentType) && stentType.equals("0")) {
+              s.addProperty(Property.TYPE_STENT_THROMB, IcpcUtils.NA);
+            }
+          })
+      .add("MACE",
+          EnumSet.of(Property.STEMI, Property.NSTEMI, Property.MI_DURING_FOLLOWUP, Property.CARDIOVASCULAR_DEATH,
+              Property.STROKE, Property.STENT_THROMB),
+          EnumSet.of(Property.MI_PHENO, Property.MACE_PHENO2, Property.MACE_PHENO2_EX_STROKE,
+              Property.MACE_CRITERIA_3, Property.MACE_CRITERIA_4, Property.MACE_CRITERIA_5),
+          SubjectIterator::deriveMace)
+      .build();
 
   private Sheet m_sheet = null;
+  private StreamingSheetReader m_reader = null;
+  private SortedMap<Integer,String> m_streamedRow = null;
   private Integer m_currentRow = 3;
   private FormulaEvaluator m_formulaEvaluator = null;
   private Map<Integer,Property> m_columnIdxToNameMap = Maps.newHashMap();
@@ -77,19 +176,33 @@ public class SubjectIterator implements Iterator {
     }
   }
 
+  /**
+   * Constructor for this {@link org.pharmgkb.SubjectIterator} that streams rows from the given reader instead of
+   * reading them from a {@link Sheet} in memory. The reader is expected to be positioned before the first row of the
+   * sheet and will be advanced as subjects are read. The caller is responsible for closing the reader.
+   * @param reader a reader for a sheet with {@link org.pharmgkb.model.Sample} data in it
+   * @throws Exception can occur if an invalid <code>reader</code> is specified
+   */
+  SubjectIterator(StreamingSheetReader reader) throws Exception {
+    if (reader == null) {
+      throw new Exception("No reader specified");
+    }
+    m_reader = reader;
+  }
+
   void parseHeading(Session session) throws Exception {
     Preconditions.checkNotNull(session);
     Map<String,String> unmappedColumnMap = Maps.newTreeMap();
 
-    Row headerRow = getSheet().getRow(sf_columnNameRowIdx);
+    SortedMap<Integer,String> headerRow = getHeaderRow();
 
-    if (!headerRow.getCell(0).getStringCellValue().equals("PharmGKB Subject ID")) {
+    if (!"PharmGKB Subject ID".equals(headerRow.get(0))) {
       throw new Exception("Can't find proper header row at index "+sf_columnNameRowIdx);
     }
 
     int cellCrawlCount = 0;
-    for (Cell cell : headerRow) {
-      String cellContent = StringUtils.strip(cell.getStringCellValue());
+    for (Integer colIdx : headerRow.keySet()) {
+      String cellContent = StringUtils.strip(headerRow.get(colIdx));
       if (!IcpcUtils.isBlank(cellContent)) {
         try {
           Property property = Property.lookupByName(cellContent);
@@ -98,14 +211,14 @@ public class SubjectIterator implements Iterator {
           }
 
           if (property!=null) {
-            getColumnIdxToNameMap().put(cell.getColumnIndex(), property);
+            getColumnIdxToNameMap().put(colIdx, property);
           }
           else {
             if (cellContent != null && cellContent.equals("LEVF Category")) {
-              getColumnIdxToNameMap().put(cell.getColumnIndex(), Property.LVEF_CATEGORY);
+              getColumnIdxToNameMap().put(colIdx, Property.LVEF_CATEGORY);
             }
             else {
-              unmappedColumnMap.put(ExcelUtils.getAddress(cell), cellContent);
+              unmappedColumnMap.put(ExcelUtils.getAddress(sf_columnNameRowIdx, colIdx), cellContent);
             }
           }
         } catch (NonUniqueResultException ex) {
@@ -122,8 +235,47 @@ public class SubjectIterator implements Iterator {
     sf_logger.debug("Finished parsing header, coloumns read: "+cellCrawlCount+", columns matched: "+getColumnIdxToNameMap().size());
   }
 
+  /**
+   * Gets the text of the cells in the header row, keyed by column index
+   * @return a map of column index to header cell text
+   */
+  private SortedMap<Integer,String> getHeaderRow() {
+    SortedMap<Integer,String> headerValues = Maps.newTreeMap();
+
+    if (m_reader != null) {
+      SortedMap<Integer,String> row = getStreamedRow(sf_columnNameRowIdx);
+      if (row != null) {
+        headerValues.putAll(row);
+      }
+    }
+    else {
+      for (Cell cell : getSheet().getRow(sf_columnNameRowIdx)) {
+        headerValues.put(cell.getColumnIndex(), cell.getStringCellValue());
+      }
+    }
+    return headerValues;
+  }
+
+  /**
+   * Advances the streaming reader to the row with the given index and returns it. Rows before the given index are
+   * skipped.
+   * @param rowIdx the 0-based index of the row to read
+   * @return the values of the row by column index or null if the row has no cells or the sheet has ended
+   */
+  private SortedMap<Integer,String> getStreamedRow(int rowIdx) {
+    while (m_reader.hasNext() && m_reader.getNextRowIndex() <= rowIdx) {
+      m_streamedRow = m_reader.next();
+    }
+    return m_reader.getRowIndex() == rowIdx ? m_streamedRow : null;
+  }
+
   @Override
   public boolean hasNext() {
+    if (m_reader != null) {
+      SortedMap<Integer,String> row = getStreamedRow(getCurrentRow());
+      return row != null && StringUtils.isNotBlank(row.get(0));
+    }
+
     if (getSheet()==null) {
       return false;
     }
@@ -141,16 +293,12 @@ public class SubjectIterator implements Iterator {
   public Sample next() {
     Sample sample = new Sample();
 
-    Row row = getSheet().getRow(getCurrentRow());
-
-    if (sf_logger.isDebugEnabled()) {
-      sf_logger.debug("row " + getCurrentRow() + " length: " + row.getLastCellNum());
-    }
-
     try {
+      Map<Integer,String> rowValues = readCurrentRow();
+
       for (Integer colIdx : getColumnIdxToNameMap().keySet()) {
         Property property = getColumnIdxToNameMap().get(colIdx);
-        String value = ExcelUtils.getStringValue(row.getCell(colIdx), getFormulaEvaluator());
+        String value = rowValues.get(colIdx);
 
         if (IcpcUtils.isBlank(value)) {
           sample.addProperty(property, IcpcUtils.NA);
@@ -162,14 +310,14 @@ public class SubjectIterator implements Iterator {
           normalizedValue = property.normalize(value);
         }
         else {
-          sf_logger.warn("[project "+sample.getProject()+"] Bad value for "+property.getShortName()+" in "+ExcelUtils.getAddress(row.getCell(colIdx))+": "+value);
+          sf_logger.warn("[project "+sample.getProject()+"] Bad value for "+property.getShortName()+" in "+ExcelUtils.getAddress(getCurrentRow(), colIdx)+": "+value);
         }
 
         try {
           sample.addProperty(property, normalizedValue);
         }
         catch (Exception ex) {
-          sf_logger.error("error with value in {}", ExcelUtils.getAddress(row.getCell(colIdx)));
+          sf_logger.error("error with value in {}", ExcelUtils.getAddress(getCurrentRow(), colIdx));
         }
 
         // some properties get set in the Smaple object itself
@@ -227,30 +375,64 @@ public class SubjectIterator implements Iterator {
   }
 
   /**
-   * Processing that can only be done after all the properties for a sample have been assigned.
-   * @param sample a Sample record with all properties set
+   * Reads the String values of the mapped columns in the current row
+   * @return a map of column index to String value, blank cells will have a null value
    */
-  public static void postProcess(Sample sample) {
-    // BMI calculation
-    sample.addProperty(Property.BMI, IcpcUtils.calculateBmi(sample));
+  private Map<Integer,String> readCurrentRow() {
+    if (m_reader != null) {
+      SortedMap<Integer,String> row = getStreamedRow(getCurrentRow());
+      return row != null ? row : Collections.<Integer,String>emptyMap();
+    }
 
-    // Creatinine fix
-    sample.addProperty(Property.CREATININE, IcpcUtils.convertCreatinine(sample));
+    Row row = getSheet().getRow(getCurrentRow());
 
-    // Creatinine category
-    sample.addProperty(Property.CREATININE_CAT, IcpcUtils.calculateCreatinineCat(sample));
+    if (sf_logger.isDebugEnabled()) {
+      sf_logger.debug("row " + getCurrentRow() + " length: " + row.getLastCellNum());
+    }
+
+    Map<Integer,String> rowValues = Maps.newHashMap();
+    for (Integer colIdx : getColumnIdxToNameMap().keySet()) {
+      rowValues.put(colIdx, ExcelUtils.getStringValue(row.getCell(colIdx), getFormulaEvaluator()));
+    }
+    return rowValues;
+  }
 
-    // set race properly using all available info
-    String ombRace = sample.calculateRace();
-    sample.setRaceOMB(ombRace);
-    sample.addProperty(Property.RACE_OMB, ombRace);
+  /**
+   * Processing that can only be done after all the properties for a sample have been assigned. This runs every rule in
+   * the derivation graph.
+   * @param sample a Sample record with all properties set
+   */
+  public static void postProcess(Sample sample) {
+    sf_derivations.evaluate(sample);
+  }
 
-    // if subject currently smokes, then they have smoked
-    String currentSmoker = sample.getProperties().get(Property.CURRENT_SMOKER);
-    if (currentSmoker != null && currentSmoker.equals(Value.Yes.getShortName())) {
-      sample.addProperty(Property.EVER_SMOKED, Value.Yes.getShortName());
+  /**
+   * Processing for a sample that's already been post-processed when only some of its properties have changed. Only the
+   * derived properties downstream of the changed properties are calculated again.
+   * @param sample a Sample record that's been post-processed before
+   * @param changed the properties that have changed since it was last post-processed
+   */
+  public static void postProcess(Sample sample, Set<Property> changed) {
+    List<String> rules = sf_derivations.evaluate(sample, changed);
+    if (sf_logger.isDebugEnabled()) {
+      sf_logger.debug("Derived {} for {}", rules, sample.getSubjectId());
     }
+  }
 
+  /**
+   * Gets the graph of rules used to derive properties in post-processing
+   */
+  static DerivationGraph getDerivations() {
+    return sf_derivations;
+  }
+
+  private static Set<Property> union(Set<Property> properties, Property property) {
+    Set<Property> union = EnumSet.copyOf(properties);
+    union.add(property);
+    return union;
+  }
+
+  private static void deriveLvef(Sample sample) {
     // if LVEF has a value, then it's available
     String lvef = sample.getProperties().get(Property.LVEF);
     if (!IcpcUtils.isBlank(lvef) && !lvef.equals("0")) {
@@ -267,8 +449,10 @@ public class SubjectIterator implements Iterator {
     else {
       sample.addProperty(Property.LVEF_CATEGORY, IcpcUtils.NA);
     }
+  }
 
-    // fix time to event properties, put in the value for maximum followup when answer is No
+  private static void deriveEventTimes(Sample sample) {
+    // put in the value for maximum followup when answer is No
     String maxDays = sample.getProperties().get(Property.DURATION_FOLLOWUP_CLINICAL_OUTCOMES);
     for (Property event : sf_eventTimeMap.keySet()) {
       String eventStatus = sample.getProperties().get(event);
@@ -276,57 +460,37 @@ public class SubjectIterator implements Iterator {
         sample.addProperty(sf_eventTimeMap.get(event), maxDays);
       }
     }
+  }
 
-    // impute MI value from STEMI and NSTEMI values
-    String nstemi = sample.getProperties().get(Property.NSTEMI);
-    String stemi = sample.getProperties().get(Property.STEMI);
-    String miDuringFollowup = IcpcUtils.calculateMiDuringFollowup(stemi, nstemi);
-    sample.addProperty(Property.MI_DURING_FOLLOWUP, miDuringFollowup);
-
-    // fix the problem with caucasiens
-    String raceSelf = sample.getProperties().get(Property.RACE_SELF);
-    if (!IcpcUtils.isBlank(raceSelf) && raceSelf.equals("caucasien")) {
-      sample.addProperty(Property.RACE_SELF, "caucasian");
-    }
-
-    // white counts from projects need to be multiplied by 1k
-    String whiteCell = sample.getProperties().get(Property.WHITE_CELL_COUNT);
-    if (!IcpcUtils.validateNumberFloor(whiteCell, 1000)) {
-      sf_logger.warn(Property.WHITE_CELL_COUNT.getDisplayName() + " is low for " + sample.getSubjectId() + ", updated");
-      Double whiteCellCount = Double.valueOf(whiteCell)*1000;
-      whiteCell = String.valueOf(whiteCellCount);
-      sample.addProperty(Property.WHITE_CELL_COUNT, whiteCell);
-    }
-
-    // red counts from projects need to be multiplied by 1m
-    String redCell = sample.getProperties().get(Property.RED_CELL_COUNT);
+  private static void deriveRedCellCount(Sample sample) {
+    double redCell = sample.getNumber(Property.RED_CELL_COUNT);
     if (!IcpcUtils.validateNumberFloor(redCell,1_000_000)) {
       sf_logger.warn(Property.RED_CELL_COUNT.getDisplayName() + " is low for "+sample.getSubjectId() + ", updated");
-      double rbcAdjusted = Double.valueOf(redCell);
+      double rbcAdjusted = redCell;
       if (rbcAdjusted>0 && rbcAdjusted<1_000) {
         rbcAdjusted = rbcAdjusted*1_000_000;
       } else if (rbcAdjusted>=1_000 && rbcAdjusted<1_000_000) {
         rbcAdjusted = rbcAdjusted*1_000;
       }
-      redCell = String.valueOf(rbcAdjusted);
-      sample.addProperty(Property.RED_CELL_COUNT, redCell);
-    }
-
-    // platelet counts from projects need to be multiplied by 1k
-    String platelet = sample.getProperties().get(Property.PLATELET_COUNT);
-    if (!IcpcUtils.validateNumberFloor(platelet,1000)) {
-      sf_logger.warn(Property.PLATELET_COUNT.getDisplayName() + " is low for "+sample.getSubjectId() + ", updated");
-      Double plateletCount = Double.valueOf(platelet)*1000;
-      platelet = String.valueOf(plateletCount);
-      sample.addProperty(Property.PLATELET_COUNT, platelet);
+      sample.setNumber(Property.RED_CELL_COUNT, rbcAdjusted);
     }
+  }
 
-    // correct type "0" stent thrombosis to "NA"
-    String stentType = sample.getProperties().get(Property.TYPE_STENT_THROMB);
-    if (!IcpcUtils.isBlank(stentType) && stentType.equals("0")) {
-      sample.addProperty(Property.TYPE_STENT_THROMB, IcpcUtils.NA);
+  /**
+   * Multiplies a count up to the right unit if it's under the floor
+   */
+  private static void deriveCount(Sample sample, Property property, double floor, double multiplier) {
+    double count = sample.getNumber(property);
+    if (!IcpcUtils.validateNumberFloor(count, floor)) {
+      sf_logger.warn(property.getDisplayName() + " is low for " + sample.getSubjectId() + ", updated");
+      sample.setNumber(property, count*multiplier);
     }
+  }
 
+  private static void deriveMace(Sample sample) {
+    String nstemi = sample.getProperties().get(Property.NSTEMI);
+    String stemi = sample.getProperties().get(Property.STEMI);
+    String miDuringFollowup = sample.getProperties().get(Property.MI_DURING_FOLLOWUP);
     String vascularDeath = sample.getProperties().get(Property.CARDIOVASCULAR_DEATH);
     String stroke = sample.getProperties().get(Property.STROKE);
     String stentThromb = sample.getProperties().get(Property.STENT_THROMB);
@@ -336,7 +500,7 @@ public class SubjectIterator implements Iterator {
     String macePheno2         = IcpcUtils.occurs(vascularDeath, stroke, stentThromb, miPheno);
     String macePheno2ExStroke = IcpcUtils.occurs(vascularDeath, stentThromb, miPheno);
     String criteria3          = IcpcUtils.addAvailableData(macePheno2, cvDeath);
-    String criteria5          = IcpcUtils.calculateCriteria5(miPheno, cvDeath, stentThromb, stroke, macePheno2ExStroke); 
+    String criteria5          = IcpcUtils.calculateCriteria5(miPheno, cvDeath, stentThromb, stroke, macePheno2ExStroke);
 
     // calculated phenotyping columns
     sample.addProperty(Property.MI_PHENO, miPheno);
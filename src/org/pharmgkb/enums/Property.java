@@ -430,6 +430,13 @@ public enum Property implements ExtendedEnum {
     return m_validator;
   }
 
+  /**
+   * Is this a numeric property, i.e. does it use the {@link IcpcUtils#VALIDATOR_NUMBER} validator
+   */
+  public boolean isNumber() {
+    return m_validator == IcpcUtils.VALIDATOR_NUMBER;
+  }
+
   public boolean validate(String value) {
     return !(m_validator == IcpcUtils.VALIDATOR_BINARY_REQ && IcpcUtils.isBlank(value))
             && value != null && (m_validator == null || IcpcUtils.isBlank(value) || m_validator.matcher(value).matches());
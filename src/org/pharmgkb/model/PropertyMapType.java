@@ -0,0 +1,115 @@
+package org.pharmgkb.model;
+
+import org.hibernate.HibernateException;
+import org.hibernate.collection.internal.PersistentMap;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.usertype.UserCollectionType;
+import org.pharmgkb.enums.Property;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Hibernate collection type for the {@link Property} map in {@link Sample}. This works the same as the default map
+ * mapping (values are still stored in the <code>properties</code> table and changes are still tracked per row by
+ * Hibernate's {@link PersistentMap}) except the map underneath is an {@link EnumMap}. That keeps values in an array
+ * indexed by ordinal instead of hashed entries so each sample takes less memory, lookups don't hash, and iteration is
+ * in {@link Property} order.
+ *
+ * @author Ryan Whaley
+ */
+public class PropertyMapType implements UserCollectionType {
+
+  @Override
+  public PersistentCollection instantiate(SessionImplementor session, CollectionPersister persister)
+      throws HibernateException {
+    return new PersistentPropertyMap(session);
+  }
+
+  @Override
+  public PersistentCollection wrap(SessionImplementor session, Object collection) {
+    return new PersistentPropertyMap(session, toEnumMap((Map<?,?>)collection));
+  }
+
+  @Override
+  public Iterator<?> getElementsIterator(Object collection) {
+    return ((Map<?,?>)collection).values().iterator();
+  }
+
+  @Override
+  public boolean contains(Object collection, Object entity) {
+    return ((Map<?,?>)collection).containsValue(entity);
+  }
+
+  @Override
+  public Object indexOf(Object collection, Object entity) {
+    for (Map.Entry<?,?> entry : ((Map<?,?>)collection).entrySet()) {
+      if (entry.getValue() == entity) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes") // copyCache is a raw Map in UserCollectionType
+  public Object replaceElements(Object original, Object target, CollectionPersister persister, Object owner,
+      Map copyCache, SessionImplementor session) throws HibernateException {
+    Map<Property,String> targetMap = asPropertyMap(target);
+    targetMap.clear();
+    targetMap.putAll(asPropertyMap(original));
+    return target;
+  }
+
+  @Override
+  public Object instantiate(int anticipatedSize) {
+    return new EnumMap<Property,String>(Property.class);
+  }
+
+  /**
+   * Casts a collection of this type, Hibernate only passes around the maps this type made
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Property,String> asPropertyMap(Object collection) {
+    return (Map<Property,String>)collection;
+  }
+
+  /**
+   * Copies the given map into an {@link EnumMap} unless it already is one
+   */
+  @SuppressWarnings("unchecked")
+  private static EnumMap<Property,String> toEnumMap(Map<?,?> map) {
+    if (map instanceof EnumMap) {
+      return (EnumMap<Property,String>)map;
+    }
+    EnumMap<Property,String> enumMap = new EnumMap<>(Property.class);
+    enumMap.putAll(asPropertyMap(map));
+    return enumMap;
+  }
+
+  /**
+   * {@link PersistentMap} that also keeps its dirty-checking snapshot in an {@link EnumMap} so the snapshot doesn't
+   * take more memory than the map itself
+   */
+  static class PersistentPropertyMap extends PersistentMap {
+    private static final long serialVersionUID = 1L;
+
+    PersistentPropertyMap(SessionImplementor session) {
+      super(session);
+    }
+
+    PersistentPropertyMap(SessionImplementor session, Map<Property,String> map) {
+      super(session, map);
+    }
+
+    @Override
+    public Serializable getSnapshot(CollectionPersister persister) throws HibernateException {
+      // values are Strings so they don't need to be deep copied
+      return toEnumMap(map).clone();
+    }
+  }
+}
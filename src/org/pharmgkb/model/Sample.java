@@ -2,10 +2,16 @@ package org.pharmgkb.model;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.CollectionType;
 import org.hibernate.annotations.Type;
 import org.pharmgkb.enums.*;
+import org.pharmgkb.util.IcpcUtils;
 
 import javax.persistence.*;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,11 +19,20 @@ import java.util.Set;
  * Class to represent a single sample of data. Some properties are set here in the model but most are defined in the
  * generic <code>properties</code> property.
  *
+ * Number properties are parsed to a double when they're set through {@link #addProperty(Property, String)}, which is
+ * how samples are ingested, so {@link #getNumber(Property)} doesn't parse them again. Values Hibernate loads into the
+ * property map don't go through <code>addProperty</code> and are parsed the first time they're read instead. Either way
+ * a parsed value is only used while the map still holds the same String it was parsed from, so changing a property
+ * makes it parse again.
+ *
  * @author Ryan Whaley
  */
 @Entity
 @Table(name="samples")
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 public class Sample {
+  private static final int sf_propertyCount = Property.values().length;
+
   private String m_subjectId;
   private Enum m_Genotyping;
   private Enum m_Phenotyping;
@@ -32,6 +47,10 @@ public class Sample {
   private Double m_Age;
   private boolean m_includedInGwas;
   private Map<Property,String> m_properties;
+  // parsed values of number properties, by ordinal, and the String each one was parsed from
+  private double[] m_numbers;
+  private String[] m_numberSources;
+  private Set<Property> m_changedProperties;
 
   @Id
   @Column(name="Subject_ID")
@@ -69,6 +88,7 @@ public class Sample {
 
   @SuppressWarnings("JpaDataSourceORMInspection")
   @ElementCollection
+  @Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
   @JoinTable(name="sampleSources", joinColumns = @JoinColumn(name="subject_id"))
   @Column(name="source")
   @Type(type="sampleSourceType")
@@ -164,6 +184,8 @@ public class Sample {
   }
 
   @ElementCollection
+  @Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
+  @CollectionType(type="org.pharmgkb.model.PropertyMapType")
   @MapKeyClass(Property.class)
   @MapKeyColumn(name="property_id")
   @CollectionTable(name="properties",joinColumns = @JoinColumn(name="subject_id"))
@@ -172,17 +194,125 @@ public class Sample {
     return m_properties;
   }
 
+  /**
+   * Sets the whole property map. Only Hibernate should call this on a saved sample, giving a saved sample a new map
+   * makes Hibernate delete and insert all of its property rows. Use {@link #addProperty(Property, String)} to change
+   * values instead.
+   */
   public void setProperties(Map<Property, String> properties) {
     m_properties = properties;
   }
 
+  /**
+   * Sets the value of a property. Setting a property to the value it already has does nothing so Hibernate won't
+   * consider the properties dirty, and setting a property to null removes it. Properties that are actually changed
+   * are recorded in {@link #getChangedProperties()}.
+   *
+   * Hibernate compares the property map to a snapshot of what was loaded when it flushes so only the rows for
+   * properties that were added, changed or removed get written.
+   * @param property the property to set
+   * @param value the new value, null to remove the property
+   */
   public void addProperty(Property property, String value) {
     Preconditions.checkNotNull(property);
     if (m_properties == null) {
-      m_properties = Maps.newHashMap();
+      m_properties = Maps.newEnumMap(Property.class);
+    }
+
+    if (value == null) {
+      if (m_properties.containsKey(property)) {
+        m_properties.remove(property);
+        markChanged(property);
+      }
+    }
+    else if (!value.equals(m_properties.get(property))) {
+      m_properties.put(property, value);
+      markChanged(property);
+      if (property.isNumber() && !IcpcUtils.isBlank(value)) {
+        try {
+          parseNumber(property, value);
+        }
+        catch (NumberFormatException ex) {
+          // bad values are still stored, getNumber throws when they're read
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the properties that have been changed through {@link #addProperty(Property, String)} since this object was
+   * made or since {@link #clearChangedProperties()} was called. This isn't saved to the DB.
+   * @return a read-only Set of properties
+   */
+  @Transient
+  public Set<Property> getChangedProperties() {
+    if (m_changedProperties == null) {
+      return Collections.emptySet();
     }
+    return Collections.unmodifiableSet(m_changedProperties);
+  }
+
+  /**
+   * Forgets all changes recorded so far
+   */
+  public void clearChangedProperties() {
+    m_changedProperties = null;
+  }
+
+  private void markChanged(Property property) {
+    if (m_changedProperties == null) {
+      m_changedProperties = EnumSet.noneOf(Property.class);
+    }
+    m_changedProperties.add(property);
+  }
+
+  /**
+   * Gets the value of a number property as a double. The value parsed when the property was set is used if there is
+   * one, otherwise the String value is parsed now and kept until the property is changed.
+   * @param property a property that uses {@link IcpcUtils#VALIDATOR_NUMBER}
+   * @return the value of the property, {@link Double#NaN} if it's blank or NA
+   * @throws NumberFormatException if the value isn't blank and can't be parsed as a number
+   */
+  public double getNumber(Property property) {
+    Preconditions.checkArgument(property.isNumber(), "Not a number property: %s", property);
+
+    String value = m_properties == null ? null : m_properties.get(property);
+    if (IcpcUtils.isBlank(value)) {
+      return Double.NaN;
+    }
+
+    // Strings are immutable so if it's the same object it's the same number
+    int idx = property.ordinal();
+    if (m_numberSources != null && m_numberSources[idx] == value) {
+      return m_numbers[idx];
+    }
+    return parseNumber(property, value);
+  }
+
+  /**
+   * Parses the value of a number property and keeps it along with the String it was parsed from
+   * @throws NumberFormatException if the value can't be parsed as a number
+   */
+  private double parseNumber(Property property, String value) {
+    double number = Double.parseDouble(value);
+    if (m_numbers == null) {
+      m_numbers = new double[sf_propertyCount];
+      m_numberSources = new String[sf_propertyCount];
+    }
+    m_numbers[property.ordinal()] = number;
+    m_numberSources[property.ordinal()] = value;
+    return number;
+  }
+
+  /**
+   * Sets the value of a number property. {@link Double#NaN} is stored as NA.
+   * @param property a property that uses {@link IcpcUtils#VALIDATOR_NUMBER}
+   * @param number the value to set
+   */
+  public void setNumber(Property property, double number) {
+    Preconditions.checkArgument(property.isNumber(), "Not a number property: %s", property);
 
-    m_properties.put(property, value);
+    addProperty(property, Double.isNaN(number) ? IcpcUtils.NA : String.valueOf(number));
   }
 
   @Column(name="Included_In_GWAS")
@@ -0,0 +1,50 @@
+package org.pharmgkb.util;
+
+/**
+ * JMX view of the metrics kept by {@link PooledConnectionProvider}. Registered as
+ * <code>org.pharmgkb:type=ConnectionPool</code> while the pool is running.
+ *
+ * @author Ryan Whaley
+ */
+public interface ConnectionPoolMXBean {
+
+  /**
+   * Gets the number of connections currently checked out of the pool
+   */
+  int getActiveConnections();
+
+  /**
+   * Gets the number of open connections waiting in the pool to be used
+   */
+  int getIdleConnections();
+
+  /**
+   * Gets the number of threads waiting for a connection to be returned to the pool
+   */
+  int getWaitingThreads();
+
+  /**
+   * Gets the most connections the pool will hand out at once
+   */
+  int getMaxConnections();
+
+  /**
+   * Gets the total number of times a connection was checked out
+   */
+  long getAcquireCount();
+
+  /**
+   * Gets the average time, in milliseconds, it took to check out a connection
+   */
+  double getAverageAcquireMillis();
+
+  /**
+   * Gets the longest time, in milliseconds, it took to check out a connection
+   */
+  double getMaxAcquireMillis();
+
+  /**
+   * Gets the number of connections that were held longer than the leak detection threshold
+   */
+  long getLeakCount();
+}
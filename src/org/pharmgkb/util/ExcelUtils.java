@@ -24,7 +24,18 @@ public class ExcelUtils {
    * @return a readable String for the address
    */
   public static String getAddress(Cell cell) {
-    return CellReference.convertNumToColString(cell.getColumnIndex()) + (cell.getRowIndex() + 1);
+    return getAddress(cell.getRowIndex(), cell.getColumnIndex());
+  }
+
+  /**
+   * Gets the human-readable address of the cell at the given 0-based row and column indexes. For example: A1, B32, AA5
+   *
+   * @param rowIdx the 0-based index of the row
+   * @param colIdx the 0-based index of the column
+   * @return a readable String for the address
+   */
+  public static String getAddress(int rowIdx, int colIdx) {
+    return CellReference.convertNumToColString(colIdx) + (rowIdx + 1);
   }
 
   /**
@@ -127,7 +138,7 @@ public class ExcelUtils {
    * @param number original number
    * @return reformatted number
    **/
-  private static String formatNumber(double number) {
+  static String formatNumber(double number) {
 
     String numString = Double.toString(number);
     int idx = numString.indexOf((int)'E');
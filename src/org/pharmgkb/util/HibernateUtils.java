@@ -3,19 +3,23 @@ package org.pharmgkb.util;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
+import org.hibernate.Cache;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
+import org.pharmgkb.model.Sample;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Properties;
 import java.util.Set;
 
 /**
@@ -27,14 +31,35 @@ import java.util.Set;
 public class HibernateUtils {
   private static final Set<String> sf_driverNames = Sets.newHashSet();
   private static final Logger sf_logger = LoggerFactory.getLogger(HibernateUtils.class);
+  private static final String sf_flushSizeKey = "hibernate.icpc.flush_size";
+  private static final String sf_propertyCatalogCacheKey = "hibernate.icpc.property_catalog_cache";
   private static SessionFactory s_sessionFactory = null;
+  private static Configuration s_configuration = null;
+  private static ServiceRegistry s_serviceRegistry = null;
 
   public static void init() {
+    init(null);
+  }
+
+  /**
+   * Builds the session factory from <code>hibernate.cfg.xml</code>. Any <code>hibernate.*</code> entries in the given
+   * properties override the values in the config file, e.g. <code>hibernate.icpc.pool.max_size</code>.
+   * @param overrides properties to override the config file with, may be null
+   */
+  public static void init(Properties overrides) {
     if (s_sessionFactory == null) {
       Configuration configuration = new Configuration().configure("hibernate.cfg.xml");
-      ServiceRegistry serviceRegistry = new ServiceRegistryBuilder().applySettings(configuration.getProperties()).buildServiceRegistry();
+      if (overrides != null) {
+        for (String key : overrides.stringPropertyNames()) {
+          if (key.startsWith("hibernate.")) {
+            configuration.setProperty(key, overrides.getProperty(key).trim());
+          }
+        }
+      }
+      s_configuration = configuration;
+      s_serviceRegistry = new ServiceRegistryBuilder().applySettings(configuration.getProperties()).buildServiceRegistry();
       sf_driverNames.add(configuration.getProperty("connection.driver_class"));
-      s_sessionFactory = configuration.buildSessionFactory(serviceRegistry);
+      s_sessionFactory = configuration.buildSessionFactory(s_serviceRegistry);
     }
   }
 
@@ -42,6 +67,11 @@ public class HibernateUtils {
     if (s_sessionFactory!=null) {
       s_sessionFactory.close();
     }
+    if (s_serviceRegistry!=null) {
+      // stops the connection provider so pooled connections get closed
+      ServiceRegistryBuilder.destroy(s_serviceRegistry);
+      s_serviceRegistry = null;
+    }
     // deregister
     Enumeration<Driver> drivers = DriverManager.getDrivers();
     while (drivers.hasMoreElements()) {
@@ -59,6 +89,46 @@ public class HibernateUtils {
     }
   }
 
+  /**
+   * Gets the number of entities to save before flushing and clearing a session during a bulk load. This is read from
+   * the <code>icpc.flush_size</code> property in the hibernate config.
+   * @return the number of entities per flush, 0 if sessions shouldn't be flushed until commit
+   */
+  public static int getFlushSize() {
+    Preconditions.checkState(s_configuration!=null, "SessionFactory has not been initiated");
+
+    String flushSize = s_configuration.getProperty(sf_flushSizeKey);
+    return flushSize == null ? 0 : Integer.parseInt(flushSize.trim());
+  }
+
+  /**
+   * Gets the file to cache the {@link PropertyCatalog} in. This is read from the <code>icpc.property_catalog_cache</code>
+   * property in the hibernate config.
+   * @return the cache file, null if the catalog shouldn't be cached
+   */
+  public static File getPropertyCatalogCache() {
+    Preconditions.checkState(s_configuration!=null, "SessionFactory has not been initiated");
+
+    String cacheFile = s_configuration.getProperty(sf_propertyCatalogCacheKey);
+    return cacheFile == null ? null : new File(cacheFile.trim());
+  }
+
+  /**
+   * Removes all samples, their collections and cached subject ID lists from the second-level cache. This should be
+   * called after samples are changed outside of Hibernate (e.g. with native SQL or COPY) so later sessions don't read
+   * stale data. Does nothing if the second-level cache isn't turned on.
+   */
+  public static void evictSamples() {
+    Preconditions.checkState(s_sessionFactory!=null, "SessionFactory has not been initiated");
+
+    Cache cache = s_sessionFactory.getCache();
+    cache.evictEntityRegion(Sample.class);
+    cache.evictCollectionRegion(Sample.class.getName()+".properties");
+    cache.evictCollectionRegion(Sample.class.getName()+".sampleSource");
+    cache.evictQueryRegions();
+    cache.evictDefaultQueryRegion();
+  }
+
   public static Session getSession() {
     Preconditions.checkState(s_sessionFactory!=null, "SessionFactory has not been initiated");
 
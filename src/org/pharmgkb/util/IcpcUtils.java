@@ -13,6 +13,8 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -46,8 +48,30 @@ public class IcpcUtils {
     sf_blankWords.add("not available");
     sf_blankWords.add("not determined");
   }
+  /** the blank words as char arrays, indexed by length, so {@link #isBlank(String)} can match them in place */
+  private static final char[][][] sf_blankWordsByLength;
+  static {
+    int maxLength = 0;
+    for (String word : sf_blankWords) {
+      maxLength = Math.max(maxLength, word.length());
+    }
+    sf_blankWordsByLength = new char[maxLength + 1][][];
+    for (String word : sf_blankWords) {
+      char[][] words = sf_blankWordsByLength[word.length()];
+      char[][] added = words == null ? new char[1][] : Arrays.copyOf(words, words.length + 1);
+      added[added.length - 1] = word.toCharArray();
+      sf_blankWordsByLength[word.length()] = added;
+    }
+  }
   private static final Logger sf_logger = LoggerFactory.getLogger(IcpcUtils.class);
 
+  /**
+   * Gets the lower-case words that {@link #isBlank(String)} treats as blank, e.g. for matching blank values in SQL
+   */
+  public static Set<String> getBlankWords() {
+    return Collections.unmodifiableSet(sf_blankWords);
+  }
+
   /**
    * Determines whether a String value can be considered "blank". Blank in this case meaning:
    * <ul>
@@ -62,6 +86,59 @@ public class IcpcUtils {
    * @return true if the string has any known "blank" value, including null
    */
   public static boolean isBlank(String string) {
+    if (string == null) {
+      return true;
+    }
+
+    // trim the same characters String.trim() does, without making a new String
+    int start = 0;
+    int end = string.length();
+    while (start < end && string.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && string.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    boolean whitespace = true;
+    for (int i = start; i < end && whitespace; i++) {
+      whitespace = Character.isWhitespace(string.charAt(i));
+    }
+    if (whitespace) {
+      return true;
+    }
+
+    int length = end - start;
+    if (length >= sf_blankWordsByLength.length || sf_blankWordsByLength[length] == null) {
+      return false;
+    }
+    for (char[] word : sf_blankWordsByLength[length]) {
+      int i = 0;
+      while (i < length) {
+        char c = string.charAt(start + i);
+        if (c >= 128 || c == 'I') {
+          // lower-casing non-ASCII characters (and I in some locales) can change the String, so do it the slow way
+          return isBlankLowerCase(string);
+        }
+        if (c >= 'A' && c <= 'Z') {
+          c = (char)(c + ('a' - 'A'));
+        }
+        if (c != word[i]) {
+          break;
+        }
+        i++;
+      }
+      if (i == length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Does the same thing as {@link #isBlank(String)} by lower-casing and trimming a copy of the String
+   */
+  private static boolean isBlankLowerCase(String string) {
     String trimString = StringUtils.trimToNull(StringUtils.lowerCase(string));
     return StringUtils.isBlank(trimString) || sf_blankWords.contains(trimString);
   }
@@ -133,9 +210,15 @@ public class IcpcUtils {
     }
   }
 
+  /**
+   * Gets the format description for the property from the {@link PropertyCatalog}, only the first call will query the
+   * DB
+   * @param session a session to load the catalog with if it hasn't been loaded yet
+   * @param property the property to get the format for
+   * @return the format description, null if none
+   */
   public static String lookupFormat(Session session, Property property) {
-    return (String)session.createSQLQuery("select format from propertynames where name=:name")
-            .setString("name", property.getShortName()).uniqueResult();
+    return PropertyCatalog.getInstance(session).getFormat(property);
   }
 
   /**
@@ -150,15 +233,15 @@ public class IcpcUtils {
     if (!isBlank(sample.getProperties().get(Property.BMI)) && !sample.getProperties().get(Property.BMI).equals("0")) {
       return sample.getProperties().get(Property.BMI);
     }
-    else if (!isBlank(sample.getProperties().get(Property.WEIGHT)) && !isBlank(sample.getProperties().get(Property.HEIGHT))) {
-      Double weight = Double.valueOf(sample.getProperties().get(Property.WEIGHT));
-      Double height = Double.valueOf(sample.getProperties().get(Property.HEIGHT))/100;
 
+    double weight = sample.getNumber(Property.WEIGHT);
+    double height = sample.getNumber(Property.HEIGHT)/100;
+    if (!Double.isNaN(weight) && !Double.isNaN(height)) {
       if (height==0d || weight==0d) {
         return IcpcUtils.NA;
       }
 
-      Double bmi = weight/(Math.pow(height, 2d));
+      double bmi = weight/(Math.pow(height, 2d));
       return String.format("%.1f", bmi);
     }
     else {
@@ -177,7 +260,7 @@ public class IcpcUtils {
       return NA;
     }
     if (sf_projectsWithBadCreatinine.contains(sample.getProject())) {
-      Double level = Double.valueOf(sample.getProperties().get(Property.CREATININE));
+      double level = sample.getNumber(Property.CREATININE);
 
       return String.format("%.2f", level/88.4d);
     }
@@ -203,7 +286,7 @@ public class IcpcUtils {
     }
     else {
       try {
-        Double level = Double.valueOf(sample.getProperties().get(Property.CREATININE));
+        double level = sample.getNumber(Property.CREATININE);
 
         if (level < 2.5d) {
           return "0";
@@ -227,9 +310,17 @@ public class IcpcUtils {
       return true;
     }
 
-    Double valueNumber = Double.valueOf(value);
-    return valueNumber >= floor;
+    return validateNumberFloor(Double.parseDouble(value), floor);
+  }
 
+  /**
+   * Checks that the number is at least the given floor
+   * @param value a number, {@link Double#NaN} for NA
+   * @param floor the lowest valid value
+   * @return true if the number is NA or at least the floor
+   */
+  public static boolean validateNumberFloor(double value, double floor) {
+    return Double.isNaN(value) || value >= floor;
   }
   
   private static boolean isYes(String value) {
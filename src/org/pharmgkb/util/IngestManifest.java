@@ -0,0 +1,170 @@
+package org.pharmgkb.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hibernate.Session;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The submission files that have been loaded into the DB, as recorded in the <code>ingestManifest</code> table. Each
+ * file is recorded with its project, a SHA-256 hash of its contents, its size, and its last modified time so a later
+ * load can tell which files haven't changed and skip them.
+ *
+ * A file is unchanged if it's the same size and has the same modified time as when it was loaded. If only the modified
+ * time is different (e.g. the file was copied again) its hash is compared, so a file is only reloaded when its contents
+ * actually changed.
+ *
+ * @author Ryan Whaley
+ */
+public class IngestManifest {
+  private static final String sf_selectEntries = "select filename, project, sha256, size, mtime from ingestManifest";
+  private static final String sf_deleteEntry = "delete from ingestManifest where filename=:filename";
+  private static final String sf_insertEntry = "insert into ingestManifest (filename, project, sha256, size, mtime) " +
+      "values (:filename, :project, :sha256, :size, :mtime)";
+  private static final String sf_deleteAll = "delete from ingestManifest";
+
+  private final Map<String,Entry> m_entries;
+
+  private IngestManifest(Map<String,Entry> entries) {
+    m_entries = entries;
+  }
+
+  /**
+   * Reads the manifest from the DB
+   * @param session an open Hibernate session
+   * @return the loaded files, keyed by file name
+   */
+  public static IngestManifest load(Session session) {
+    ImmutableMap.Builder<String,Entry> entries = ImmutableMap.builder();
+    //noinspection unchecked
+    List<Object[]> rows = session.createSQLQuery(sf_selectEntries).list();
+    for (Object[] row : rows) {
+      Entry entry = new Entry(((Number)row[1]).intValue(), (String)row[2], ((Number)row[3]).longValue(),
+          ((Number)row[4]).longValue());
+      entries.put((String)row[0], entry);
+    }
+    return new IngestManifest(entries.build());
+  }
+
+  /**
+   * Records that the file has been loaded for the project, replacing any earlier record for the same file name
+   * @param session an open Hibernate session, the caller commits it
+   * @param file the file that was loaded
+   * @param project the project the file was loaded for
+   * @throws IOException if the file can't be read to hash it
+   */
+  public static void record(Session session, File file, Integer project) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(project);
+
+    session.createSQLQuery(sf_deleteEntry)
+        .setString("filename", file.getName())
+        .executeUpdate();
+    session.createSQLQuery(sf_insertEntry)
+        .setString("filename", file.getName())
+        .setInteger("project", project)
+        .setString("sha256", sha256(file))
+        .setLong("size", file.length())
+        .setLong("mtime", file.lastModified())
+        .executeUpdate();
+  }
+
+  /**
+   * Removes the record for a file that's no longer loaded
+   * @param session an open Hibernate session, the caller commits it
+   * @param fileName the name of the file
+   */
+  public static void remove(Session session, String fileName) {
+    session.createSQLQuery(sf_deleteEntry)
+        .setString("filename", fileName)
+        .executeUpdate();
+  }
+
+  /**
+   * Removes every record, e.g. when all the loaded data is truncated
+   * @param session an open Hibernate session, the caller commits it
+   */
+  public static void clear(Session session) {
+    session.createSQLQuery(sf_deleteAll).executeUpdate();
+  }
+
+  /**
+   * Gets the SHA-256 hash of the file's contents
+   * @param file a file
+   * @return the hash as a hex String
+   * @throws IOException if the file can't be read
+   */
+  public static String sha256(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return DigestUtils.sha256Hex(in);
+    }
+  }
+
+  /**
+   * Is the file the same as when it was last loaded
+   * @param file a submission file
+   * @return true if the file has been loaded before and hasn't changed since
+   * @throws IOException if the file can't be read to hash it
+   */
+  public boolean isUnchanged(File file) throws IOException {
+    Entry entry = m_entries.get(file.getName());
+    if (entry == null || entry.getSize() != file.length()) {
+      return false;
+    }
+    return entry.getMtime() == file.lastModified() || entry.getSha256().equals(sha256(file));
+  }
+
+  /**
+   * Gets the loaded files, keyed by file name
+   */
+  public Map<String,Entry> getEntries() {
+    return m_entries;
+  }
+
+  /**
+   * A loaded file
+   */
+  public static class Entry {
+    private final int m_project;
+    private final String m_sha256;
+    private final long m_size;
+    private final long m_mtime;
+
+    Entry(int project, String sha256, long size, long mtime) {
+      m_project = project;
+      m_sha256 = sha256;
+      m_size = size;
+      m_mtime = mtime;
+    }
+
+    public int getProject() {
+      return m_project;
+    }
+
+    public String getSha256() {
+      return m_sha256;
+    }
+
+    /**
+     * Gets the size of the file in bytes
+     */
+    public long getSize() {
+      return m_size;
+    }
+
+    /**
+     * Gets the last modified time of the file, in milliseconds since the epoch
+     */
+    public long getMtime() {
+      return m_mtime;
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package org.pharmgkb.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.jdbc.connections.internal.ConnectionProviderInitiator;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded JDBC connection pool for Hibernate to use instead of its built-in DriverManager provider, which isn't meant
+ * for production and doesn't hold up when several threads load or report at the same time.
+ *
+ * Set <code>connection.provider_class</code> to this class in the hibernate config to use it. These properties
+ * (all optional) control the pool:
+ * <ul>
+ *   <li><code>icpc.pool.max_size</code>: most connections open at once, defaults to <code>connection.pool_size</code>
+ *   or 10</li>
+ *   <li><code>icpc.pool.acquire_timeout</code>: milliseconds to wait for a connection before failing, default 30000</li>
+ *   <li><code>icpc.pool.validation_interval</code>: milliseconds a connection can sit idle before it's validated on
+ *   checkout, default 30000</li>
+ *   <li><code>icpc.pool.leak_threshold</code>: milliseconds a connection can be checked out before a leak warning is
+ *   logged with the stack trace that checked it out, 0 (the default) turns leak detection off</li>
+ *   <li><code>icpc.pool.prepare_threshold</code>: number of times a statement is run on a connection before the
+ *   PostgreSQL driver switches it to a server-side prepared statement</li>
+ * </ul>
+ *
+ * Pool metrics are published over JMX through {@link ConnectionPoolMXBean}.
+ *
+ * @author Ryan Whaley
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable, ConnectionPoolMXBean {
+  private static final long serialVersionUID = 1L;
+  private static final Logger sf_logger = LoggerFactory.getLogger(PooledConnectionProvider.class);
+  public static final String MAX_SIZE = "hibernate.icpc.pool.max_size";
+  public static final String ACQUIRE_TIMEOUT = "hibernate.icpc.pool.acquire_timeout";
+  public static final String VALIDATION_INTERVAL = "hibernate.icpc.pool.validation_interval";
+  public static final String LEAK_THRESHOLD = "hibernate.icpc.pool.leak_threshold";
+  public static final String PREPARE_THRESHOLD = "hibernate.icpc.pool.prepare_threshold";
+  private static final String sf_objectName = "org.pharmgkb:type=ConnectionPool";
+  private static final int sf_validationTimeoutSeconds = 5;
+
+  private String m_url;
+  private Properties m_connectionProperties;
+  private Integer m_isolation;
+  private boolean m_autocommit;
+  private int m_maxSize;
+  private long m_acquireTimeout;
+  private long m_validationInterval;
+  private long m_leakThreshold;
+
+  private Semaphore m_permits;
+  private final ConcurrentLinkedDeque<IdleConnection> m_idle = new ConcurrentLinkedDeque<>();
+  private final Map<Connection,Lease> m_active = Collections.synchronizedMap(new IdentityHashMap<>());
+  private final AtomicInteger m_waiting = new AtomicInteger();
+  private final AtomicLong m_acquireCount = new AtomicLong();
+  private final AtomicLong m_acquireNanos = new AtomicLong();
+  private final AtomicLong m_maxAcquireNanos = new AtomicLong();
+  private final AtomicLong m_leakCount = new AtomicLong();
+  private ScheduledExecutorService m_leakDetector;
+  private ObjectName m_registeredName;
+  private volatile boolean m_stopped = false;
+
+  @Override
+  @SuppressWarnings("rawtypes") // configValues is a raw Map in Configurable
+  public void configure(Map configValues) {
+    m_url = (String)configValues.get(AvailableSettings.URL);
+    Preconditions.checkArgument(m_url != null, "No JDBC URL specified by %s", AvailableSettings.URL);
+
+    String driverClass = (String)configValues.get(AvailableSettings.DRIVER);
+    if (driverClass != null) {
+      try {
+        Class.forName(driverClass);
+      }
+      catch (ClassNotFoundException ex) {
+        throw new IllegalArgumentException("JDBC driver class not found: "+driverClass, ex);
+      }
+    }
+
+    m_connectionProperties = ConnectionProviderInitiator.getConnectionProperties(configValues);
+    int prepareThreshold = ConfigurationHelper.getInt(PREPARE_THRESHOLD, configValues, -1);
+    if (prepareThreshold >= 0) {
+      m_connectionProperties.setProperty("prepareThreshold", String.valueOf(prepareThreshold));
+    }
+    m_isolation = ConfigurationHelper.getInteger(AvailableSettings.ISOLATION, configValues);
+    m_autocommit = ConfigurationHelper.getBoolean(AvailableSettings.AUTOCOMMIT, configValues);
+
+    m_maxSize = ConfigurationHelper.getInt(MAX_SIZE, configValues,
+        ConfigurationHelper.getInt(AvailableSettings.POOL_SIZE, configValues, 10));
+    Preconditions.checkArgument(m_maxSize > 0, "Pool size must be positive: %s", m_maxSize);
+    m_acquireTimeout = ConfigurationHelper.getInt(ACQUIRE_TIMEOUT, configValues, 30_000);
+    m_validationInterval = ConfigurationHelper.getInt(VALIDATION_INTERVAL, configValues, 30_000);
+    m_leakThreshold = ConfigurationHelper.getInt(LEAK_THRESHOLD, configValues, 0);
+
+    m_permits = new Semaphore(m_maxSize, true);
+
+    if (m_leakThreshold > 0) {
+      m_leakDetector = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("connection-leak-detector").setDaemon(true).build());
+      long period = Math.max(1_000, m_leakThreshold / 2);
+      m_leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    registerMBean();
+    sf_logger.info("Connection pool for {} with up to {} connections", m_url, m_maxSize);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (m_stopped) {
+      throw new SQLException("Connection pool has been stopped");
+    }
+    long start = System.nanoTime();
+    m_waiting.incrementAndGet();
+    try {
+      if (!m_permits.tryAcquire(m_acquireTimeout, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out after "+m_acquireTimeout+" ms waiting for a connection, "+
+            getActiveConnections()+" of "+m_maxSize+" in use");
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", ex);
+    }
+    finally {
+      m_waiting.decrementAndGet();
+    }
+
+    Connection connection;
+    try {
+      connection = takeIdleConnection();
+      if (connection == null) {
+        connection = openConnection();
+      }
+    }
+    catch (SQLException|RuntimeException ex) {
+      m_permits.release();
+      throw ex;
+    }
+
+    m_active.put(connection, new Lease(m_leakThreshold > 0));
+    recordAcquire(System.nanoTime() - start);
+    return connection;
+  }
+
+  @Override
+  public void closeConnection(Connection connection) throws SQLException {
+    if (m_active.remove(connection) == null) {
+      sf_logger.warn("Closing a connection that didn't come from this pool");
+      connection.close();
+      return;
+    }
+
+    try {
+      if (connection.isClosed()) {
+        return;
+      }
+      if (m_stopped) {
+        // the idle connections have already been closed, don't leave this one open in the pool
+        closeQuietly(connection);
+        return;
+      }
+      if (connection.getAutoCommit() != m_autocommit) {
+        connection.setAutoCommit(m_autocommit);
+      }
+      connection.clearWarnings();
+      IdleConnection idle = new IdleConnection(connection);
+      m_idle.addFirst(idle);
+      if (m_stopped && m_idle.removeFirstOccurrence(idle)) {
+        // stop() ran while this was being reset and may have missed it
+        closeQuietly(connection);
+      }
+    }
+    catch (SQLException ex) {
+      sf_logger.warn("Dropping connection that couldn't be reset", ex);
+      closeQuietly(connection);
+    }
+    finally {
+      m_permits.release();
+    }
+  }
+
+  @Override
+  public boolean supportsAggressiveRelease() {
+    return false;
+  }
+
+  /**
+   * Closes the idle connections. Connections that are still checked out are closed when they're returned and no more
+   * connections can be checked out.
+   */
+  @Override
+  public void stop() {
+    m_stopped = true;
+    if (m_leakDetector != null) {
+      m_leakDetector.shutdownNow();
+    }
+    unregisterMBean();
+
+    IdleConnection idle;
+    while ((idle = m_idle.pollFirst()) != null) {
+      closeQuietly(idle.m_connection);
+    }
+    if (!m_active.isEmpty()) {
+      sf_logger.warn("{} connections still checked out when the pool was stopped", m_active.size());
+    }
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes") // unwrapType is a raw Class in Wrapped
+  public boolean isUnwrappableAs(Class unwrapType) {
+    return ConnectionProvider.class.equals(unwrapType) || PooledConnectionProvider.class.isAssignableFrom(unwrapType);
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> unwrapType) {
+    if (isUnwrappableAs(unwrapType)) {
+      return unwrapType.cast(this);
+    }
+    throw new UnknownUnwrapTypeException(unwrapType);
+  }
+
+  /**
+   * Takes the most recently used idle connection, validating it if it's been idle for a while. Connections that fail
+   * validation are closed and the next one is tried.
+   * @return an open connection or null if there are no idle connections
+   */
+  private Connection takeIdleConnection() {
+    IdleConnection idle;
+    while ((idle = m_idle.pollFirst()) != null) {
+      if (System.currentTimeMillis() - idle.m_returned < m_validationInterval || isValid(idle.m_connection)) {
+        return idle.m_connection;
+      }
+      sf_logger.debug("Dropping connection that failed validation");
+      closeQuietly(idle.m_connection);
+    }
+    return null;
+  }
+
+  private Connection openConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(m_url, m_connectionProperties);
+    if (m_isolation != null) {
+      connection.setTransactionIsolation(m_isolation);
+    }
+    if (connection.getAutoCommit() != m_autocommit) {
+      connection.setAutoCommit(m_autocommit);
+    }
+    return connection;
+  }
+
+  private static boolean isValid(Connection connection) {
+    try {
+      return connection.isValid(sf_validationTimeoutSeconds);
+    }
+    catch (SQLException ex) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.close();
+    }
+    catch (SQLException ex) {
+      sf_logger.debug("Error closing connection", ex);
+    }
+  }
+
+  private void recordAcquire(long nanos) {
+    m_acquireCount.incrementAndGet();
+    m_acquireNanos.addAndGet(nanos);
+    long max;
+    do {
+      max = m_maxAcquireNanos.get();
+    } while (nanos > max && !m_maxAcquireNanos.compareAndSet(max, nanos));
+  }
+
+  /**
+   * Logs a warning for each connection that's been checked out longer than the leak threshold. Each connection is only
+   * reported once per checkout.
+   */
+  private void detectLeaks() {
+    long now = System.currentTimeMillis();
+    synchronized (m_active) {
+      for (Lease lease : m_active.values()) {
+        if (!lease.m_reported && now - lease.m_checkedOut > m_leakThreshold) {
+          lease.m_reported = true;
+          m_leakCount.incrementAndGet();
+          sf_logger.warn("Connection checked out for "+(now - lease.m_checkedOut)+" ms, possible leak", lease.m_origin);
+        }
+      }
+    }
+  }
+
+  private void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(sf_objectName);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+        m_registeredName = name;
+      }
+    }
+    catch (Exception ex) {
+      sf_logger.warn("Couldn't register connection pool metrics", ex);
+    }
+  }
+
+  private void unregisterMBean() {
+    if (m_registeredName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_registeredName);
+      }
+      catch (Exception ex) {
+        sf_logger.debug("Couldn't unregister connection pool metrics", ex);
+      }
+      m_registeredName = null;
+    }
+  }
+
+  @Override
+  public int getActiveConnections() {
+    return m_active.size();
+  }
+
+  @Override
+  public int getIdleConnections() {
+    return m_idle.size();
+  }
+
+  @Override
+  public int getWaitingThreads() {
+    return m_waiting.get();
+  }
+
+  @Override
+  public int getMaxConnections() {
+    return m_maxSize;
+  }
+
+  @Override
+  public long getAcquireCount() {
+    return m_acquireCount.get();
+  }
+
+  @Override
+  public double getAverageAcquireMillis() {
+    long count = m_acquireCount.get();
+    return count == 0 ? 0d : m_acquireNanos.get() / (count * 1_000_000d);
+  }
+
+  @Override
+  public double getMaxAcquireMillis() {
+    return m_maxAcquireNanos.get() / 1_000_000d;
+  }
+
+  @Override
+  public long getLeakCount() {
+    return m_leakCount.get();
+  }
+
+  /**
+   * A connection sitting in the pool and when it was put there
+   */
+  private static class IdleConnection {
+    private final Connection m_connection;
+    private final long m_returned = System.currentTimeMillis();
+
+    private IdleConnection(Connection connection) {
+      m_connection = connection;
+    }
+  }
+
+  /**
+   * When a connection was checked out and, if leak detection is on, where from
+   */
+  private static class Lease {
+    private final long m_checkedOut = System.currentTimeMillis();
+    private final Throwable m_origin;
+    private boolean m_reported = false;
+
+    private Lease(boolean trackOrigin) {
+      m_origin = trackOrigin ? new Throwable("Connection checked out here") : null;
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package org.pharmgkb.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.hibernate.Session;
+import org.pharmgkb.enums.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Immutable catalog of the descriptions, data types and formats stored for each {@link Property} in the
+ * <code>propertyNames</code> table. The whole table is read in one query the first time the catalog is needed so
+ * looking up a value after that doesn't go to the DB.
+ *
+ * If the <code>icpc.property_catalog_cache</code> property is set in the hibernate config the catalog is also saved
+ * to that file and read from it on later runs instead of querying the DB. Delete the file to pick up changes made to
+ * <code>propertyNames</code>.
+ *
+ * @author Ryan Whaley
+ */
+public class PropertyCatalog {
+  private static final Logger sf_logger = LoggerFactory.getLogger(PropertyCatalog.class);
+  private static final String sf_query =
+      "select name, descrip, datatype, format from propertynames order by idx";
+  private static final String sf_descriptionSuffix = ".descrip";
+  private static final String sf_datatypeSuffix = ".datatype";
+  private static final String sf_formatSuffix = ".format";
+  private static volatile PropertyCatalog s_instance = null;
+
+  private final Map<Property,Entry> m_entries;
+
+  /**
+   * Constructor
+   * @param entries the catalog entries for each property, properties with no entry are not in the catalog
+   */
+  PropertyCatalog(Map<Property,Entry> entries) {
+    Map<Property,Entry> entryMap = new EnumMap<>(Property.class);
+    entryMap.putAll(entries);
+    m_entries = Collections.unmodifiableMap(entryMap);
+  }
+
+  /**
+   * Gets the shared catalog, loading it with the given session the first time it's called. If a cache file is
+   * configured it will be used instead of the DB when it exists.
+   * @param session a session to query <code>propertyNames</code> with if the catalog hasn't been loaded yet
+   * @return the shared catalog
+   */
+  public static PropertyCatalog getInstance(Session session) {
+    PropertyCatalog catalog = s_instance;
+    if (catalog == null) {
+      synchronized (PropertyCatalog.class) {
+        catalog = s_instance;
+        if (catalog == null) {
+          catalog = load(session, HibernateUtils.getPropertyCatalogCache());
+          s_instance = catalog;
+        }
+      }
+    }
+    return catalog;
+  }
+
+  /**
+   * Loads a catalog from the cache file if it exists, otherwise from the DB. When loaded from the DB the catalog will
+   * be written to the cache file.
+   * @param session a session to query <code>propertyNames</code> with
+   * @param cacheFile the file to cache the catalog in, null to always load from the DB
+   * @return a new catalog
+   */
+  public static PropertyCatalog load(Session session, File cacheFile) {
+    if (cacheFile != null && cacheFile.exists()) {
+      try {
+        PropertyCatalog catalog = readFrom(cacheFile);
+        sf_logger.debug("Read property catalog from {}", cacheFile);
+        return catalog;
+      }
+      catch (IOException ex) {
+        sf_logger.warn("Couldn't read property catalog cache "+cacheFile+", loading from DB", ex);
+      }
+    }
+
+    PropertyCatalog catalog = load(session);
+    if (cacheFile != null) {
+      try {
+        catalog.writeTo(cacheFile);
+      }
+      catch (IOException ex) {
+        sf_logger.warn("Couldn't write property catalog cache "+cacheFile, ex);
+      }
+    }
+    return catalog;
+  }
+
+  /**
+   * Loads a catalog from the <code>propertyNames</code> table in one query. Rows with names that don't match a
+   * {@link Property} short name are skipped.
+   * @param session a session to query with
+   * @return a new catalog
+   */
+  public static PropertyCatalog load(Session session) {
+    Preconditions.checkNotNull(session);
+    Map<String,Property> nameMap = makeNameMap();
+
+    Map<Property,Entry> entries = Maps.newHashMap();
+    //noinspection unchecked
+    List<Object[]> rows = session.createSQLQuery(sf_query).list();
+    for (Object[] row : rows) {
+      Property property = nameMap.get((String)row[0]);
+      if (property != null && !entries.containsKey(property)) {
+        entries.put(property, new Entry((String)row[1], (String)row[2], (String)row[3]));
+      }
+    }
+    sf_logger.debug("Loaded {} property catalog entries from DB", entries.size());
+    return new PropertyCatalog(entries);
+  }
+
+  /**
+   * Gets the description for the property, null if none
+   */
+  public String getDescription(Property property) {
+    Entry entry = m_entries.get(property);
+    return entry == null ? null : entry.getDescription();
+  }
+
+  /**
+   * Gets the data type for the property (e.g. "number" or "string"), null if none
+   */
+  public String getDatatype(Property property) {
+    Entry entry = m_entries.get(property);
+    return entry == null ? null : entry.getDatatype();
+  }
+
+  /**
+   * Gets the format description for the property, null if none
+   */
+  public String getFormat(Property property) {
+    Entry entry = m_entries.get(property);
+    return entry == null ? null : entry.getFormat();
+  }
+
+  /**
+   * Gets the number of properties in this catalog
+   */
+  public int size() {
+    return m_entries.size();
+  }
+
+  /**
+   * Writes this catalog out to a properties file keyed by property short name
+   */
+  void writeTo(File file) throws IOException {
+    Properties props = new Properties();
+    for (Map.Entry<Property,Entry> entry : m_entries.entrySet()) {
+      String name = entry.getKey().getShortName();
+      putIfNotNull(props, name + sf_descriptionSuffix, entry.getValue().getDescription());
+      putIfNotNull(props, name + sf_datatypeSuffix, entry.getValue().getDatatype());
+      putIfNotNull(props, name + sf_formatSuffix, entry.getValue().getFormat());
+      // always write something for the property so it's known to be in the catalog
+      props.setProperty(name, "");
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      props.store(out, "Cached copy of the propertyNames table");
+    }
+  }
+
+  /**
+   * Reads a catalog from a file made by {@link #writeTo(File)}
+   */
+  static PropertyCatalog readFrom(File file) throws IOException {
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+
+    Map<Property,Entry> entries = Maps.newHashMap();
+    for (Property property : Property.values()) {
+      String name = property.getShortName();
+      if (props.containsKey(name)) {
+        entries.put(property, new Entry(
+            props.getProperty(name + sf_descriptionSuffix),
+            props.getProperty(name + sf_datatypeSuffix),
+            props.getProperty(name + sf_formatSuffix)));
+      }
+    }
+    return new PropertyCatalog(entries);
+  }
+
+  private static void putIfNotNull(Properties props, String key, String value) {
+    if (value != null) {
+      props.setProperty(key, value);
+    }
+  }
+
+  private static Map<String,Property> makeNameMap() {
+    Map<String,Property> nameMap = Maps.newHashMap();
+    for (Property property : Property.values()) {
+      nameMap.put(property.getShortName(), property);
+    }
+    return nameMap;
+  }
+
+  /**
+   * The values stored for a single property
+   */
+  public static class Entry {
+    private final String m_description;
+    private final String m_datatype;
+    private final String m_format;
+
+    Entry(String description, String datatype, String format) {
+      m_description = description;
+      m_datatype = datatype;
+      m_format = format;
+    }
+
+    public String getDescription() {
+      return m_description;
+    }
+
+    public String getDatatype() {
+      return m_datatype;
+    }
+
+    public String getFormat() {
+      return m_format;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package org.pharmgkb.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pharmgkb.exception.PgkbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a set of stages on a pool of threads, starting each stage as soon as the stages it depends on have finished.
+ *
+ * Each stage declares the resources it requires and the resources it provides, a resource is just a name for something
+ * a stage produces (e.g. "samples" for the subjects loaded into the DB). A stage starts once every stage that provides
+ * one of its required resources has finished, so stages that don't depend on each other run at the same time. If a
+ * stage fails, the stages that depend on it are skipped but everything else still runs.
+ *
+ * @author Ryan Whaley
+ */
+public class StageScheduler {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The work done by a stage
+   */
+  public interface Stage {
+    void run() throws Exception;
+  }
+
+  private final List<StageEntry> m_stages = Lists.newArrayList();
+
+  /**
+   * Declares a stage
+   * @param name a unique name for the stage, used in logging
+   * @param requires the resources that have to be provided before the stage can start
+   * @param provides the resources the stage provides once it finishes
+   * @param stage the work to do
+   * @return this scheduler
+   */
+  public StageScheduler add(String name, Collection<String> requires, Collection<String> provides, Stage stage) {
+    Preconditions.checkNotNull(name);
+    Preconditions.checkNotNull(stage);
+    for (StageEntry entry : m_stages) {
+      Preconditions.checkArgument(!entry.m_name.equals(name), "Stage %s has already been added", name);
+    }
+    m_stages.add(new StageEntry(name, requires, provides, stage));
+    return this;
+  }
+
+  /**
+   * Runs all the stages and waits for them to finish
+   * @param threads the most stages to run at the same time
+   * @throws PgkbException if a required resource isn't provided by any stage, if the stages depend on each other in a
+   * cycle, or if any stage failed
+   */
+  public void run(int threads) throws PgkbException {
+    Preconditions.checkArgument(threads > 0, "Thread count must be positive: %s", threads);
+    List<StageEntry> sorted = sort();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("stage-%d").build());
+    Set<String> failures = Collections.synchronizedSet(Sets.<String>newHashSet());
+    Map<StageEntry,CompletableFuture<Void>> futures = Maps.newLinkedHashMap();
+    try {
+      for (StageEntry entry : sorted) {
+        CompletableFuture<?>[] prerequisites = getProviders(entry).stream()
+            .map(futures::get)
+            .toArray(CompletableFuture<?>[]::new);
+        futures.put(entry, CompletableFuture.allOf(prerequisites).thenRunAsync(() -> {
+          sf_logger.info("Starting stage {}", entry.m_name);
+          long start = System.currentTimeMillis();
+          try {
+            entry.m_stage.run();
+          }
+          catch (Exception ex) {
+            failures.add(entry.m_name);
+            sf_logger.error("Stage " + entry.m_name + " failed", ex);
+            throw new CompletionException(ex);
+          }
+          sf_logger.info("Finished stage {} in {} ms", entry.m_name, System.currentTimeMillis() - start);
+        }, executor));
+      }
+
+      List<String> skipped = Lists.newArrayList();
+      for (StageEntry entry : m_stages) {
+        try {
+          futures.get(entry).join();
+        }
+        catch (CompletionException ex) {
+          if (!failures.contains(entry.m_name)) {
+            sf_logger.warn("Skipped stage {} because a stage it depends on failed", entry.m_name);
+            skipped.add(entry.m_name);
+          }
+        }
+      }
+      if (failures.size() > 0) {
+        throw new PgkbException("Stages failed: " + new TreeSet<>(failures) + ", skipped: " + skipped);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the stages that provide any of the resources the given stage requires
+   */
+  private List<StageEntry> getProviders(StageEntry stage) {
+    List<StageEntry> providers = Lists.newArrayList();
+    for (StageEntry entry : m_stages) {
+      if (entry != stage && !Sets.intersection(entry.m_provides, stage.m_requires).isEmpty()) {
+        providers.add(entry);
+      }
+    }
+    return providers;
+  }
+
+  /**
+   * Sorts the stages so every stage comes after the stages it depends on, stages that don't depend on each other stay
+   * in the order they were added
+   * @throws PgkbException if a required resource isn't provided or the stages depend on each other in a cycle
+   */
+  private List<StageEntry> sort() throws PgkbException {
+    Set<String> provided = Sets.newHashSet();
+    for (StageEntry entry : m_stages) {
+      provided.addAll(entry.m_provides);
+    }
+    for (StageEntry entry : m_stages) {
+      Set<String> missing = Sets.difference(entry.m_requires, provided);
+      if (!missing.isEmpty()) {
+        throw new PgkbException("No stage provides " + missing + " for stage " + entry.m_name);
+      }
+    }
+
+    List<StageEntry> sorted = Lists.newArrayList();
+    List<StageEntry> remaining = Lists.newArrayList(m_stages);
+    while (!remaining.isEmpty()) {
+      StageEntry next = null;
+      for (StageEntry entry : remaining) {
+        if (sorted.containsAll(getProviders(entry))) {
+          next = entry;
+          break;
+        }
+      }
+      if (next == null) {
+        throw new PgkbException("Stages depend on each other in a cycle: " + remaining);
+      }
+      sorted.add(next);
+      remaining.remove(next);
+    }
+    return sorted;
+  }
+
+  private static class StageEntry {
+    private final String m_name;
+    private final Set<String> m_requires;
+    private final Set<String> m_provides;
+    private final Stage m_stage;
+
+    private StageEntry(String name, Collection<String> requires, Collection<String> provides, Stage stage) {
+      m_name = name;
+      m_requires = ImmutableSet.copyOf(requires);
+      m_provides = ImmutableSet.copyOf(provides);
+      m_stage = stage;
+    }
+
+    @Override
+    public String toString() {
+      return m_name;
+    }
+  }
+}
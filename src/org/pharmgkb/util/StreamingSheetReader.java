@@ -0,0 +1,312 @@
+package org.pharmgkb.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.pharmgkb.exception.PgkbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * Reads the rows of a single sheet in an <code>.xlsx</code> file one at a time without building the whole workbook in
+ * memory. This sits on top of the POI event model: the {@link XSSFReader} gives access to the raw sheet XML and the
+ * {@link ReadOnlySharedStringsTable} resolves shared string cells. The sheet XML itself is pulled through a StAX reader
+ * so only the current row is ever held in memory, no matter how many rows the sheet has.
+ *
+ * Cell values are converted to Strings the same way {@link ExcelUtils#getStringValue} does it for the DOM model so
+ * the two ways of reading a workbook give the same values. Formula cells use the value cached in the file.
+ *
+ * @author Ryan Whaley
+ */
+public class StreamingSheetReader implements Iterator<SortedMap<Integer,String>>, Closeable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(StreamingSheetReader.class);
+  private static final XMLInputFactory sf_xmlInputFactory = XMLInputFactory.newInstance();
+
+  private OPCPackage m_package;
+  private ReadOnlySharedStringsTable m_sharedStrings;
+  private InputStream m_sheetStream;
+  private XMLStreamReader m_xmlReader;
+  private SortedMap<Integer,String> m_nextRow = null;
+  private int m_nextRowIdx = -1;
+  private int m_rowIdx = -1;
+
+  /**
+   * Constructor. Opens the file and positions the reader before the first row of the sheet with the given name.
+   * @param file an Excel (.xlsx) file
+   * @param sheetName the name of the sheet to read
+   * @throws PgkbException can occur if the file can't be read or the sheet can't be found
+   */
+  public StreamingSheetReader(File file, String sheetName) throws PgkbException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(sheetName);
+
+    try {
+      m_package = OPCPackage.open(file, PackageAccess.READ);
+      m_sharedStrings = new ReadOnlySharedStringsTable(m_package);
+
+      XSSFReader xssfReader = new XSSFReader(m_package);
+      XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator)xssfReader.getSheetsData();
+      while (sheets.hasNext() && m_sheetStream == null) {
+        InputStream sheetStream = sheets.next();
+        if (sheetName.equals(sheets.getSheetName())) {
+          m_sheetStream = sheetStream;
+        }
+        else {
+          sheetStream.close();
+        }
+      }
+      if (m_sheetStream == null) {
+        throw new PgkbException("Required worksheet "+sheetName+" not found in "+file);
+      }
+
+      m_xmlReader = sf_xmlInputFactory.createXMLStreamReader(m_sheetStream);
+      readNextRow();
+    }
+    catch (PgkbException ex) {
+      close();
+      throw ex;
+    }
+    catch (Exception ex) {
+      close();
+      throw new PgkbException("Couldn't open "+file+" for streaming", ex);
+    }
+  }
+
+  /**
+   * Checks whether the file has a sheet with the given name without reading any of the sheet data
+   * @param file an Excel (.xlsx) file
+   * @param sheetName the name of the sheet to look for
+   * @return true if the sheet exists in the file
+   * @throws PgkbException can occur if the file can't be read
+   */
+  public static boolean hasSheet(File file, String sheetName) throws PgkbException {
+    OPCPackage opcPackage = null;
+    try {
+      opcPackage = OPCPackage.open(file, PackageAccess.READ);
+      XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator)new XSSFReader(opcPackage).getSheetsData();
+      while (sheets.hasNext()) {
+        // only the name is needed, the sheet's stream is closed without reading it
+        sheets.next().close();
+        if (sheetName.equals(sheets.getSheetName())) {
+          return true;
+        }
+      }
+      return false;
+    }
+    catch (Exception ex) {
+      throw new PgkbException("Couldn't read sheets of "+file, ex);
+    }
+    finally {
+      if (opcPackage != null) {
+        opcPackage.revert();
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return m_nextRow != null;
+  }
+
+  /**
+   * Gets the next physical row in the sheet. Rows that have no cells in the file are skipped so use
+   * {@link #getRowIndex()} to find out which row was returned.
+   * @return a map of 0-based column index to the String value of the cell, blank cells are not included
+   */
+  @Override
+  public SortedMap<Integer,String> next() {
+    if (m_nextRow == null) {
+      throw new NoSuchElementException("No more rows in sheet");
+    }
+    SortedMap<Integer,String> row = m_nextRow;
+    m_rowIdx = m_nextRowIdx;
+
+    try {
+      readNextRow();
+    }
+    catch (XMLStreamException ex) {
+      throw new IllegalStateException("Error reading row after "+(m_rowIdx+1), ex);
+    }
+    return row;
+  }
+
+  /**
+   * Gets the 0-based index of the row returned by the last call to {@link #next()}
+   */
+  public int getRowIndex() {
+    return m_rowIdx;
+  }
+
+  /**
+   * Gets the 0-based index of the row that will be returned by the next call to {@link #next()}, -1 if there are no
+   * more rows
+   */
+  public int getNextRowIndex() {
+    return m_nextRow == null ? -1 : m_nextRowIdx;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove() not implemented for StreamingSheetReader");
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (m_xmlReader != null) {
+        m_xmlReader.close();
+      }
+      if (m_sheetStream != null) {
+        m_sheetStream.close();
+      }
+    }
+    catch (XMLStreamException|IOException ex) {
+      sf_logger.warn("Error closing sheet stream", ex);
+    }
+    finally {
+      if (m_package != null) {
+        // opened read-only so revert just closes the package without trying to save it
+        m_package.revert();
+        m_package = null;
+      }
+      m_nextRow = null;
+    }
+  }
+
+  /**
+   * Moves the XML reader through the next <code>row</code> element and buffers its values
+   */
+  private void readNextRow() throws XMLStreamException {
+    m_nextRow = null;
+
+    while (m_xmlReader.hasNext()) {
+      int event = m_xmlReader.next();
+      if (event == XMLStreamConstants.START_ELEMENT && m_xmlReader.getLocalName().equals("row")) {
+        String rowRef = m_xmlReader.getAttributeValue(null, "r");
+        m_nextRowIdx = rowRef != null ? Integer.parseInt(rowRef) - 1 : m_nextRowIdx + 1;
+        m_nextRow = readCells();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads all the <code>c</code> elements of the current <code>row</code> element
+   * @return a map of column index to String value
+   */
+  private SortedMap<Integer,String> readCells() throws XMLStreamException {
+    SortedMap<Integer,String> cells = Maps.newTreeMap();
+    int colIdx = -1;
+
+    while (m_xmlReader.hasNext()) {
+      int event = m_xmlReader.next();
+      if (event == XMLStreamConstants.END_ELEMENT && m_xmlReader.getLocalName().equals("row")) {
+        break;
+      }
+      if (event == XMLStreamConstants.START_ELEMENT && m_xmlReader.getLocalName().equals("c")) {
+        String cellRef = m_xmlReader.getAttributeValue(null, "r");
+        colIdx = cellRef != null ? new CellReference(cellRef).getCol() : colIdx + 1;
+        String value = readCellValue(m_xmlReader.getAttributeValue(null, "t"));
+        if (value != null) {
+          cells.put(colIdx, value);
+        }
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Reads the contents of the current <code>c</code> element and converts it to a String
+   * @param type the value of the <code>t</code> attribute of the cell, may be null
+   * @return the String value of the cell or null if it's blank
+   */
+  private String readCellValue(String type) throws XMLStreamException {
+    String value = null;
+    StringBuilder inlineValue = null;
+    boolean inInlineString = false;
+
+    while (m_xmlReader.hasNext()) {
+      int event = m_xmlReader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        String name = m_xmlReader.getLocalName();
+        if (name.equals("c")) {
+          break;
+        }
+        else if (name.equals("is")) {
+          inInlineString = false;
+        }
+      }
+      else if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = m_xmlReader.getLocalName();
+        if (name.equals("v")) {
+          value = m_xmlReader.getElementText();
+        }
+        else if (name.equals("is")) {
+          inInlineString = true;
+          inlineValue = new StringBuilder();
+        }
+        else if (name.equals("rPh")) {
+          // phonetic runs aren't part of the displayed value
+          skipElement();
+        }
+        else if (inInlineString && name.equals("t")) {
+          inlineValue.append(m_xmlReader.getElementText());
+        }
+      }
+    }
+
+    if (inlineValue != null) {
+      return StringUtils.stripToNull(inlineValue.toString());
+    }
+    if (value == null) {
+      return null;
+    }
+
+    if (type == null || type.equals("n")) {
+      return StringUtils.isBlank(value) ? null : ExcelUtils.formatNumber(Double.parseDouble(value));
+    }
+    switch (type) {
+      case "s":
+        return StringUtils.stripToNull(m_sharedStrings.getEntryAt(Integer.parseInt(value.trim())));
+      case "b":
+        return Boolean.toString(value.trim().equals("1"));
+      case "e":
+        return null;
+      default:
+        return StringUtils.stripToNull(value);
+    }
+  }
+
+  /**
+   * Skips over the current element and all of its children
+   */
+  private void skipElement() throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0 && m_xmlReader.hasNext()) {
+      int event = m_xmlReader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
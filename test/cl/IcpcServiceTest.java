@@ -0,0 +1,127 @@
+package cl;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import org.pharmgkb.CohortSnapshot;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the service's commands, token, and methods on an ephemeral port with samples that don't come from the DB
+ *
+ * @author Ryan Whaley
+ */
+public class IcpcServiceTest {
+
+  @Test
+  public void testCommands() throws Exception {
+    File tokenFile = File.createTempFile("icpc-service", ".token");
+    IcpcService service = new IcpcService();
+    service.setPort(0);
+    service.setTokenFile(tokenFile);
+    service.listen(CohortSnapshot.of(ImmutableList.of(makeSample("PA1"), makeSample("PA2"))));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      String token = new String(Files.readAllBytes(tokenFile.toPath()), Charsets.UTF_8);
+      assertEquals(64, token.length());
+      if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+      }
+
+      Response status = send(service, "GET", "/status", token, null);
+      assertEquals(200, status.m_code);
+      assertTrue(status.m_body, status.m_body.startsWith("samples: 2\n"));
+
+      assertEquals(401, send(service, "GET", "/status", null, null).m_code);
+      assertEquals(401, send(service, "GET", "/status", "not the token", null).m_code);
+
+      Response sample = send(service, "GET", "/sample?id=PA1", token, null);
+      assertEquals(200, sample.m_code);
+      assertTrue(sample.m_body, sample.m_body.contains("PA1"));
+      assertEquals(400, send(service, "GET", "/sample?id=PA9", token, null).m_code);
+      assertEquals(400, send(service, "GET", "/sample", token, null).m_code);
+
+      // commands that change anything have to be POSTed
+      assertEquals(405, send(service, "GET", "/shutdown", token, null).m_code);
+      assertEquals(405, send(service, "GET", "/report?type=gwas&dir=/tmp", token, null).m_code);
+      assertEquals(405, send(service, "POST", "/status", token, "").m_code);
+      assertEquals(400, send(service, "POST", "/report", token, "dir=/tmp").m_code);
+      assertEquals(401, send(service, "POST", "/shutdown", null, "").m_code);
+
+      Future<?> stopped = executor.submit(() -> {
+        service.awaitShutdown();
+        return null;
+      });
+      assertEquals(200, send(service, "POST", "/shutdown", token, "").m_code);
+      stopped.get(10, TimeUnit.SECONDS);
+      assertFalse(tokenFile.exists());
+    }
+    finally {
+      executor.shutdownNow();
+      tokenFile.delete();
+    }
+  }
+
+  private static Response send(IcpcService service, String method, String path, String token, String body)
+      throws IOException {
+    URL url = new URL("http://127.0.0.1:" + service.getPort() + path);
+    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+    try {
+      connection.setRequestMethod(method);
+      if (token != null) {
+        connection.setRequestProperty(IcpcService.TOKEN_HEADER, token);
+      }
+      if (body != null) {
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body.getBytes(Charsets.UTF_8));
+        }
+      }
+
+      Response response = new Response();
+      response.m_code = connection.getResponseCode();
+      try (InputStream in = response.m_code < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+        response.m_body = in == null ? "" : new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+      }
+      return response;
+    }
+    finally {
+      connection.disconnect();
+    }
+  }
+
+  private static Sample makeSample(String subjectId) {
+    Sample sample = new Sample();
+    sample.setSubjectId(subjectId);
+    sample.setProject(1);
+    sample.addProperty(Property.SUBJECT_ID, subjectId);
+    return sample;
+  }
+
+  private static class Response {
+    private int m_code;
+    private String m_body;
+  }
+}
@@ -0,0 +1,104 @@
+package cl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.pharmgkb.exception.PgkbException;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test that TemplateParser only records files in the ingest manifest once they've loaded, and that a file that fails
+ * to load is reported without stopping the others
+ *
+ * @author Ryan Whaley
+ */
+public class TemplateParserTest {
+
+  @Test
+  public void testLoadedFileRecorded() throws Exception {
+    File file = makeFile("project1");
+    RecordingParser parser = new RecordingParser();
+
+    assertEquals(5, parser.parseFile(file));
+    assertTrue(parser.m_manifest.contains(file.getName()));
+  }
+
+  @Test
+  public void testFailedFileNotRecorded() throws Exception {
+    File file = makeFile("project2");
+    RecordingParser parser = new RecordingParser();
+    // loaded before, so it would be skipped by an incremental load if it stayed in the manifest
+    parser.m_manifest.add(file.getName());
+    parser.m_failures.add(file.getName());
+
+    try {
+      parser.parseFile(file);
+      fail("Should have failed");
+    }
+    catch (PgkbException ex) {
+      // expected
+    }
+    assertFalse(parser.m_manifest.contains(file.getName()));
+  }
+
+  @Test
+  public void testFailedFileDoesNotStopOthers() throws Exception {
+    for (int threads : new int[]{1, 3}) {
+      File good1 = makeFile("project3");
+      File bad = makeFile("project4");
+      File good2 = makeFile("project5");
+      RecordingParser parser = new RecordingParser();
+      parser.setThreads(threads);
+      parser.m_failures.add(bad.getName());
+
+      try {
+        parser.parseFiles(ImmutableList.of(good1, bad, good2));
+        fail("Should have failed");
+      }
+      catch (PgkbException ex) {
+        assertTrue(ex.getMessage(), ex.getMessage().contains("Couldn't load 1 files: [" + bad.getName() + "]"));
+      }
+      assertEquals(Sets.newHashSet(good1.getName(), good2.getName()), parser.m_manifest);
+    }
+  }
+
+  static File makeFile(String project) throws Exception {
+    File file = File.createTempFile(project + "_", ".xlsx");
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * Keeps the manifest in memory and fails to load the files it's told to instead of using the DB
+   */
+  static class RecordingParser extends TemplateParser {
+    final Set<String> m_manifest = Collections.synchronizedSet(Sets.<String>newHashSet());
+    final Set<String> m_failures = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+    @Override
+    void forgetFile(File file) {
+      m_manifest.remove(file.getName());
+    }
+
+    @Override
+    int loadFile(File file) throws Exception {
+      if (m_failures.contains(file.getName())) {
+        throw new PgkbException("Error saving subjects for " + file);
+      }
+      return 5;
+    }
+
+    @Override
+    void recordFile(File file) {
+      m_manifest.add(file.getName());
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package org.pharmgkb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.IcpcUtils;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoublePredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test parsing cohort filters and evaluating them against samples and a CohortIndex
+ *
+ * @author Ryan Whaley
+ */
+public class CohortFilterTest {
+  private static final String[] sf_rikenIds = {"12", "NA", null, " ", "x", "99"};
+  private static final String[] sf_cgs = {"1", "0", "NA", null};
+  private static final String[] sf_ages = {"45", "65", "70.5", "NA", "old"};
+  private static final String[] sf_sqlAges = {"45", " 65 ", "70.5", "99", "NA", "", "old", "5d", "NaN", "1e2", "-.5",
+      "0x10", null};
+
+  @Test
+  public void testMatches() {
+    Sample sample = makeSample("PA1", 3, "12", "1", "65");
+
+    assertTrue(CohortFilter.parse("RIKEN_ID != NA").matches(sample));
+    assertTrue(CohortFilter.parse("riken_new_id != na").matches(sample));
+    assertTrue(CohortFilter.parse("CGS = 1 AND Project = 3").matches(sample));
+    assertFalse(CohortFilter.parse("CGS = 0 OR Project != 3").matches(sample));
+    assertTrue(CohortFilter.parse("NOT (CGS = 0 OR Project < 3)").matches(sample));
+    assertTrue(CohortFilter.parse("Age >= 65 AND Age < 65.5").matches(sample));
+    assertFalse(CohortFilter.parse("Age > 65").matches(sample));
+    assertTrue(CohortFilter.parse("Age = 65.0").matches(sample));
+    assertTrue(CohortFilter.parse("Gender = NA").matches(sample));
+    assertTrue(CohortFilter.parse("Gender = 'unknown'").matches(sample));
+    assertTrue(CohortFilter.parse("Gender != 2").matches(sample));
+
+    // AND binds tighter than OR
+    assertTrue(CohortFilter.parse("CGS = 1 OR CGS = 0 AND Project = 9").matches(sample));
+  }
+
+  @Test
+  public void testReportFilters() {
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+    GwasReport gwas = new GwasReport(dir);
+    FndzReport fndz = new FndzReport(dir);
+
+    for (Sample sample : makeSamples()) {
+      String rikenId = sample.getProperties().get(Property.RIKEN_ID);
+      String cgs = sample.getProperties().get(Property.CGS);
+      assertEquals(!IcpcUtils.isBlank(rikenId) || "1".equals(cgs), gwas.includeSample(sample));
+      assertEquals(!IcpcUtils.isBlank(rikenId) && !Integer.valueOf(4).equals(sample.getProject()),
+          fndz.includeSample(sample));
+    }
+  }
+
+  @Test
+  public void testSelectMatchesSamples() {
+    List<Sample> samples = makeSamples();
+    CohortIndex index = new CohortIndex(samples);
+
+    for (String expression : ImmutableList.of(
+        "RIKEN_ID != NA OR CGS = 1",
+        "RIKEN_ID != NA AND Project != 4",
+        "Age >= 65",
+        "Age < 65 OR Age = NA",
+        "NOT Age > 50 AND CGS != 0",
+        "Project <= 2 OR (CGS = NA AND RIKEN_ID = 12)",
+        "Project = NA OR Project > 4")) {
+      CohortFilter filter = CohortFilter.parse(expression);
+      List<Sample> expected = Lists.newArrayList();
+      for (Sample sample : samples) {
+        if (filter.matches(sample)) {
+          expected.add(sample);
+        }
+      }
+      assertEquals(expression, expected, index.getSamples(filter.select(index)));
+    }
+  }
+
+  /**
+   * Runs number comparisons through the SQL they generate and through {@link CohortFilter#matches(Sample)}. The SQL is
+   * evaluated the way the DB would: the value has to match the regex in the SQL and not be in the blank word list
+   * parameter before it's cast and compared, and a subject without a value never matches the <code>exists</code>.
+   */
+  @Test
+  public void testSqlMatchesSamples() {
+    Pattern regexPattern = Pattern.compile("p\\.value ~ '([^']*)' and .* not in \\(:(p[0-9]+)\\)");
+    Map<String,DoublePredicate> comparisons = ImmutableMap.<String,DoublePredicate>builder()
+        .put("Age > 50", age -> age > 50)
+        .put("Age <= 65", age -> age <= 65)
+        .put("Age = 100", age -> age == 100)
+        .build();
+
+    for (Map.Entry<String,DoublePredicate> comparison : comparisons.entrySet()) {
+      for (String expression : ImmutableList.of(comparison.getKey(), "NOT " + comparison.getKey())) {
+        CohortFilter filter = CohortFilter.parse(expression);
+        Map<String,Object> params = Maps.newLinkedHashMap();
+        String sql = filter.toSql(params);
+        Matcher matcher = regexPattern.matcher(sql);
+        assertTrue(sql, matcher.find());
+        Pattern numberPattern = Pattern.compile(matcher.group(1));
+        Collection<?> blankWords = (Collection<?>)params.get(matcher.group(2));
+        boolean negated = sql.startsWith("not (");
+
+        for (String age : sf_sqlAges) {
+          boolean exists = false;
+          if (age != null && numberPattern.matcher(age).matches() &&
+              !blankWords.contains(age.trim().toLowerCase())) {
+            exists = comparison.getValue().test(Double.parseDouble(age.trim()));
+          }
+          Sample sample = makeSample("PA1", 1, null, null, age);
+          assertEquals(expression + " with " + age, exists != negated, filter.matches(sample));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCombine() {
+    CohortFilter rikenId = CohortFilter.parse("RIKEN_ID != NA");
+    CohortFilter project = CohortFilter.parse("Project = 2");
+
+    assertEquals(null, CohortFilter.and(null, null));
+    assertEquals(rikenId, CohortFilter.and(null, rikenId));
+    assertEquals("(RIKEN_ID != NA) AND (Project = 2)", CohortFilter.and(rikenId, project).toString());
+    assertEquals("(RIKEN_ID != NA) OR (Project = 2)", CohortFilter.or(ImmutableList.of(rikenId, project)).toString());
+    assertEquals(null, CohortFilter.or(Lists.newArrayList(rikenId, null)));
+
+    Sample sample = makeSample("PA1", 2, "NA", null, null);
+    assertFalse(CohortFilter.and(rikenId, project).matches(sample));
+    assertTrue(CohortFilter.or(ImmutableList.of(rikenId, project)).matches(sample));
+  }
+
+  @Test
+  public void testBadFilters() {
+    for (String expression : ImmutableList.of(
+        "",
+        "NOT_A_PROPERTY = 1",
+        "RIKEN_ID !=",
+        "RIKEN_ID NA",
+        "RIKEN_ID =< 4",
+        "Gender > 1",
+        "Age > NA",
+        "Age = old",
+        "(CGS = 1",
+        "CGS = 1 Project = 2",
+        "CGS = 'yes")) {
+      try {
+        CohortFilter.parse(expression);
+        fail("Should not parse: " + expression);
+      }
+      catch (IllegalArgumentException ex) {
+        // expected
+      }
+    }
+  }
+
+  private static List<Sample> makeSamples() {
+    List<Sample> samples = Lists.newArrayList();
+    int id = 0;
+    for (int project = 1; project <= 5; project++) {
+      for (String rikenId : sf_rikenIds) {
+        for (String cgs : sf_cgs) {
+          for (String age : sf_ages) {
+            samples.add(makeSample("PA" + id++, project, rikenId, cgs, age));
+          }
+        }
+      }
+    }
+    samples.add(makeSample("PA" + id, null, "12", "1", "50"));
+    return samples;
+  }
+
+  private static Sample makeSample(String subjectId, Integer project, String rikenId, String cgs, String age) {
+    Sample sample = new Sample();
+    sample.setSubjectId(subjectId);
+    sample.setProject(project);
+    sample.addProperty(Property.SUBJECT_ID, subjectId);
+    sample.addProperty(Property.RIKEN_ID, rikenId);
+    sample.addProperty(Property.CGS, cgs);
+    sample.addProperty(Property.AGE, age);
+    return sample;
+  }
+}
@@ -0,0 +1,116 @@
+package org.pharmgkb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.IcpcUtils;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test selecting and counting samples with a CohortIndex
+ *
+ * @author Ryan Whaley
+ */
+public class CohortIndexTest {
+
+  @Test
+  public void testColumns() {
+    CohortIndex index = new CohortIndex(ImmutableList.of(
+        makeSample("PA1", 1, "101", "1", "1"),
+        makeSample("PA2", 1, "NA", "0", "2"),
+        makeSample("PA3", 4, "103", null, "1"),
+        makeSample("PA4", 2, "not a number", "1", "NA")));
+
+    assertEquals(4, index.size());
+    assertEquals(bits(0, 2, 3), index.getPresent(Property.RIKEN_ID));
+    assertEquals(101d, index.getNumber(0, Property.RIKEN_ID), 0d);
+    assertTrue(Double.isNaN(index.getNumber(1, Property.RIKEN_ID)));
+    assertTrue(Double.isNaN(index.getNumber(3, Property.RIKEN_ID)));
+
+    assertTrue(index.isIndexed(Property.CGS));
+    assertFalse(index.isIndexed(Property.RIKEN_ID));
+    assertEquals(bits(0, 3), index.getRows(Property.CGS, "1"));
+    assertEquals(bits(), index.getRows(Property.CGS, IcpcUtils.NA));
+    assertEquals(bits(0, 1), index.getProjectRows(1));
+    assertEquals(bits(), index.getProjectRows(99));
+
+    assertEquals(ImmutableMap.of("1", 2, "2", 1), index.countByValue(Property.GENDER, index.all()));
+    assertEquals(ImmutableMap.of("1", 1, "2", 1), index.countByValue(Property.GENDER, index.getProjectRows(1)));
+
+    // bitmaps are copies, changing one doesn't change the index
+    index.getRows(Property.CGS, "1").clear();
+    assertEquals(bits(0, 3), index.getRows(Property.CGS, "1"));
+  }
+
+  @Test
+  public void testUnindexedValues() {
+    List<Sample> samples = Lists.newArrayList();
+    for (int i = 0; i < CohortIndex.MAX_INDEXED_VALUES + 10; i++) {
+      Sample sample = makeSample("PA" + i, 1, null, null, null);
+      sample.addProperty(Property.COUNTRY, "country " + i);
+      samples.add(sample);
+    }
+    CohortIndex index = new CohortIndex(samples);
+
+    assertFalse(index.isIndexed(Property.COUNTRY));
+    assertEquals(bits(70), index.getRows(Property.COUNTRY, "country 70"));
+    assertEquals("country 5", index.getString(5, Property.COUNTRY));
+  }
+
+  @Test
+  public void testReportSelection() {
+    List<Sample> samples = Lists.newArrayList();
+    String[] rikenIds = {"12", "NA", null, "  ", "x"};
+    String[] cgs = {"1", "0", "NA", null};
+    int id = 0;
+    for (int project = 1; project <= 5; project++) {
+      for (String rikenId : rikenIds) {
+        for (String cgsValue : cgs) {
+          samples.add(makeSample("PA" + id++, project, rikenId, cgsValue, "1"));
+        }
+      }
+    }
+    CohortIndex index = new CohortIndex(samples);
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    for (AbstractReport report : ImmutableList.of(new GwasReport(dir), new FndzReport(dir),
+        new CombinedDataReport(dir, 3))) {
+      List<Sample> expected = Lists.newArrayList();
+      for (Sample sample : samples) {
+        if (report.includeSample(sample)) {
+          expected.add(sample);
+        }
+      }
+      assertEquals(report.getClass().getSimpleName(), expected, index.getSamples(report.selectRows(index)));
+    }
+  }
+
+  private static BitSet bits(int... rows) {
+    BitSet bits = new BitSet();
+    for (int row : rows) {
+      bits.set(row);
+    }
+    return bits;
+  }
+
+  private static Sample makeSample(String subjectId, int project, String rikenId, String cgs, String gender) {
+    Sample sample = new Sample();
+    sample.setSubjectId(subjectId);
+    sample.setProject(project);
+    sample.addProperty(Property.SUBJECT_ID, subjectId);
+    sample.addProperty(Property.RIKEN_ID, rikenId);
+    sample.addProperty(Property.CGS, cgs);
+    sample.addProperty(Property.GENDER, gender);
+    return sample;
+  }
+}
@@ -0,0 +1,95 @@
+package org.pharmgkb;
+
+import org.apache.commons.io.IOUtils;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the quoting and number formatting in DelimitedReportWriter, and cleaning up delimited reports that fail
+ *
+ * @author Ryan Whaley
+ */
+public class DelimitedReportWriterTest {
+
+  @Test
+  public void testFormatNumber() {
+    assertEquals("65", DelimitedReportWriter.formatNumber(65d));
+    assertEquals("-3", DelimitedReportWriter.formatNumber(-3d));
+    assertEquals("27.5", DelimitedReportWriter.formatNumber(27.5));
+    assertEquals("0.0001", DelimitedReportWriter.formatNumber(0.0001));
+    assertEquals("NaN", DelimitedReportWriter.formatNumber(Double.NaN));
+  }
+
+  @Test
+  public void testGetFile() {
+    File file = new File("out", "icpc.combined.xlsx");
+    assertEquals(new File("out", "icpc.combined.csv"),
+        DelimitedReportWriter.getFile(file, DelimitedReportWriter.Format.CSV, false));
+    assertEquals(new File("out", "icpc.combined.tsv.gz"),
+        DelimitedReportWriter.getFile(file, DelimitedReportWriter.Format.TSV, true));
+  }
+
+  @Test
+  public void testWriteCsv() throws Exception {
+    File file = File.createTempFile("report", ".csv");
+    file.deleteOnExit();
+    try (DelimitedReportWriter writer = new DelimitedReportWriter(file, DelimitedReportWriter.Format.CSV, false)) {
+      writer.writeRow(new Object[]{"PA1234", 61d, null, "NA"});
+      writer.writeRow(new Object[]{"a,b", "say \"hi\"", "two\nlines", 1.5});
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      assertEquals("PA1234,61,,NA\n\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",1.5\n",
+          IOUtils.toString(in, StandardCharsets.UTF_8.name()));
+    }
+  }
+
+  @Test
+  public void testWriteGzipTsv() throws Exception {
+    File file = File.createTempFile("report", ".tsv.gz");
+    file.deleteOnExit();
+    try (DelimitedReportWriter writer = new DelimitedReportWriter(file, DelimitedReportWriter.Format.TSV, true)) {
+      writer.writeRow(new Object[]{"a,b", "c\td", 2d});
+    }
+    try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+      assertEquals("a,b\t\"c\td\"\t2\n", IOUtils.toString(in, StandardCharsets.UTF_8.name()));
+    }
+  }
+
+  @Test
+  public void testCloseUnsaved() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      GwasReport report = new GwasReport(dir);
+      report.setDelimitedFormat(DelimitedReportWriter.Format.TSV, true);
+      report.writeRow(new Object[]{"PA1", 1d});
+      assertTrue(report.getFile().exists());
+
+      // a report that fails before it's saved doesn't leave a truncated file behind
+      report.closeUnsaved();
+      assertFalse(report.getFile().exists());
+
+      report.writeRow(new Object[]{"PA2", 2d});
+      report.save();
+      report.closeUnsaved();
+      try (InputStream in = new GZIPInputStream(new FileInputStream(report.getFile()))) {
+        assertEquals("PA2\t2\n", IOUtils.toString(in, StandardCharsets.UTF_8.name()));
+      }
+    }
+    finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+}
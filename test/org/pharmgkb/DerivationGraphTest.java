@@ -0,0 +1,128 @@
+package org.pharmgkb;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.enums.Race;
+import org.pharmgkb.enums.Value;
+import org.pharmgkb.model.Sample;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test ordering and incremental evaluation of DerivationGraph
+ *
+ * @author Ryan Whaley
+ */
+public class DerivationGraphTest {
+
+  @Test
+  public void testOrder() {
+    List<String> run = Lists.newArrayList();
+    DerivationGraph graph = DerivationGraph.builder()
+        .add("bmi", EnumSet.of(Property.WEIGHT, Property.HEIGHT), EnumSet.of(Property.BMI), s -> run.add("bmi"))
+        .add("stemi", EnumSet.of(Property.STEMI), EnumSet.of(Property.MI_DURING_FOLLOWUP), s -> run.add("stemi"))
+        .add("mace", EnumSet.of(Property.MI_DURING_FOLLOWUP), EnumSet.of(Property.MI_PHENO), s -> run.add("mace"))
+        .build();
+
+    graph.evaluate(new Sample());
+    assertEquals(Lists.newArrayList("bmi", "stemi", "mace"), run);
+
+    run.clear();
+    List<String> evaluated = graph.evaluate(new Sample(), EnumSet.of(Property.STEMI));
+    assertEquals(Lists.newArrayList("stemi", "mace"), evaluated);
+    assertEquals(evaluated, run);
+
+    run.clear();
+    assertTrue(graph.evaluate(new Sample(), EnumSet.of(Property.CGS)).isEmpty());
+    assertTrue(run.isEmpty());
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    List<String> run = Lists.newArrayList();
+    DerivationGraph graph = DerivationGraph.builder()
+        .add("mace", EnumSet.of(Property.MI_DURING_FOLLOWUP), EnumSet.of(Property.MI_PHENO), s -> run.add("mace"))
+        .add("stemi", EnumSet.of(Property.STEMI), EnumSet.of(Property.MI_DURING_FOLLOWUP), s -> run.add("stemi"))
+        .add("bmi", EnumSet.of(Property.WEIGHT, Property.HEIGHT), EnumSet.of(Property.BMI), s -> run.add("bmi"))
+        .add("fix stemi", EnumSet.of(Property.STEMI), EnumSet.of(Property.STEMI), s -> run.add("fix stemi"))
+        .add("fix stemi again", EnumSet.of(Property.STEMI), EnumSet.of(Property.STEMI), s -> run.add("fix again"))
+        .build();
+
+    graph.evaluate(new Sample());
+    assertEquals(Lists.newArrayList("bmi", "fix stemi", "fix again", "stemi", "mace"), run);
+
+    List<String> evaluated = graph.evaluate(new Sample(), EnumSet.of(Property.STEMI));
+    assertEquals(Lists.newArrayList("fix stemi", "fix stemi again", "stemi", "mace"), evaluated);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCycle() {
+    DerivationGraph.builder()
+        .add("stemi", EnumSet.of(Property.STEMI), EnumSet.of(Property.MI_DURING_FOLLOWUP), s -> {})
+        .add("mi", EnumSet.of(Property.MI_DURING_FOLLOWUP), EnumSet.of(Property.STEMI), s -> {})
+        .build();
+  }
+
+  @Test
+  public void testPostProcessIncremental() {
+    DerivationGraph derivations = SubjectIterator.getDerivations();
+    assertTrue(derivations.getDownstreamRules(EnumSet.of(Property.CGS)).isEmpty());
+
+    List<String> names = Lists.newArrayList();
+    derivations.getDownstreamRules(EnumSet.of(Property.STEMI)).forEach(r -> names.add(r.getName()));
+    assertEquals(Lists.newArrayList("event times", "MI during followup", "MACE"), names);
+
+    Sample sample = new Sample();
+    sample.addProperty(Property.STEMI, Value.Yes.getShortName());
+    sample.addProperty(Property.NSTEMI, Value.No.getShortName());
+    SubjectIterator.postProcess(sample, EnumSet.of(Property.STEMI));
+    assertEquals(Value.Yes.getShortName(), sample.getProperties().get(Property.MI_DURING_FOLLOWUP));
+  }
+
+  @Test
+  public void testRaceSelf() {
+    Sample sample = new Sample();
+    sample.setProject(1);
+    sample.setRaceself("caucasien");
+    sample.addProperty(Property.RACE_SELF, "caucasien");
+    SubjectIterator.postProcess(sample);
+    assertEquals("caucasian", sample.getRaceself());
+    assertEquals("caucasian", sample.getProperties().get(Property.RACE_SELF));
+    assertEquals(Race.WHITE.getShortName(), sample.getRaceOMB());
+    assertEquals(Race.WHITE.getShortName(), sample.getProperties().get(Property.RACE_OMB));
+
+    List<String> names = Lists.newArrayList();
+    SubjectIterator.getDerivations().getDownstreamRules(EnumSet.of(Property.RACE_SELF))
+        .forEach(r -> names.add(r.getName()));
+    assertEquals(Lists.newArrayList("race self", "race"), names);
+  }
+
+  @Test
+  public void testFallbackIncremental() {
+    Sample sample = new Sample();
+    sample.setProject(1);
+    sample.addProperty(Property.WEIGHT, "80");
+    sample.addProperty(Property.HEIGHT, "200");
+    sample.addProperty(Property.CREATININE, "1.0");
+    SubjectIterator.postProcess(sample);
+    assertEquals("20.0", sample.getProperties().get(Property.BMI));
+    assertEquals("0", sample.getProperties().get(Property.CREATININE_CAT));
+
+    sample.addProperty(Property.WEIGHT, "100");
+    sample.addProperty(Property.CREATININE, "3.0");
+    SubjectIterator.postProcess(sample, EnumSet.of(Property.WEIGHT, Property.CREATININE));
+    assertEquals("25.0", sample.getProperties().get(Property.BMI));
+    assertEquals("1", sample.getProperties().get(Property.CREATININE_CAT));
+
+    // a submitted value is kept
+    sample.addProperty(Property.WEIGHT, "120");
+    sample.addProperty(Property.BMI, "31.5");
+    SubjectIterator.postProcess(sample, EnumSet.of(Property.WEIGHT, Property.BMI));
+    assertEquals("31.5", sample.getProperties().get(Property.BMI));
+  }
+}
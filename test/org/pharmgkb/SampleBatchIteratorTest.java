@@ -0,0 +1,90 @@
+package org.pharmgkb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.hibernate.Session;
+import org.junit.Test;
+import org.pharmgkb.model.Sample;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Test iterating over chunks of samples when some of the subject IDs no longer have samples
+ *
+ * @author Ryan Whaley
+ */
+public class SampleBatchIteratorTest {
+  private static final List<String> sf_subjectIds = ImmutableList.of("PA1", "PA2", "PA3", "PA4", "PA5", "PA6", "PA7");
+
+  @Test
+  public void testDeletedChunks() {
+    SampleBatchIterator iterator = new DeletedSamplesIterator(ImmutableSet.of("PA1", "PA6"));
+    List<String> subjectIds = Lists.newArrayList();
+    while (iterator.hasNext()) {
+      subjectIds.add(iterator.next().getSubjectId());
+    }
+    assertEquals(ImmutableList.of("PA1", "PA6"), subjectIds);
+
+    try {
+      iterator.next();
+      fail("Should have no more samples");
+    }
+    catch (NoSuchElementException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testAllDeleted() {
+    SampleBatchIterator iterator = new DeletedSamplesIterator(ImmutableSet.<String>of());
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void testNextWithoutHasNext() {
+    SampleBatchIterator iterator = new DeletedSamplesIterator(ImmutableSet.of("PA5", "PA7"));
+    assertEquals("PA5", iterator.next().getSubjectId());
+    assertEquals("PA7", iterator.next().getSubjectId());
+    assertFalse(iterator.hasNext());
+  }
+
+  /**
+   * Iterates over fake samples two at a time, only the given subjects still have samples
+   */
+  private static class DeletedSamplesIterator extends SampleBatchIterator {
+    private final Set<String> m_remaining;
+
+    private DeletedSamplesIterator(Set<String> remaining) {
+      super(makeSession(), sf_subjectIds, 2, true);
+      m_remaining = remaining;
+    }
+
+    @Override
+    List<Sample> loadChunk(List<String> ids) {
+      List<Sample> chunk = Lists.newArrayList();
+      for (String id : ids) {
+        if (m_remaining.contains(id)) {
+          Sample sample = new Sample();
+          sample.setSubjectId(id);
+          chunk.add(sample);
+        }
+      }
+      return chunk;
+    }
+  }
+
+  private static Session makeSession() {
+    return (Session)Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class},
+        (proxy, method, args) -> {
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+}
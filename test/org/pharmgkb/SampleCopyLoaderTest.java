@@ -0,0 +1,54 @@
+package org.pharmgkb;
+
+import org.junit.Test;
+import org.pharmgkb.enums.Gender;
+import org.pharmgkb.enums.Value;
+import org.pharmgkb.model.Sample;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the COPY text formatting in SampleCopyLoader
+ *
+ * @author Ryan Whaley
+ */
+public class SampleCopyLoaderTest {
+
+  @Test
+  public void testAppendValue() {
+    StringBuilder sb = new StringBuilder();
+    SampleCopyLoader.appendValue(sb, null);
+    assertEquals("\\N", sb.toString());
+
+    sb = new StringBuilder();
+    SampleCopyLoader.appendValue(sb, "plain value");
+    assertEquals("plain value", sb.toString());
+
+    sb = new StringBuilder();
+    SampleCopyLoader.appendValue(sb, "a\tb\nc\rd\\e");
+    assertEquals("a\\tb\\nc\\rd\\\\e", sb.toString());
+  }
+
+  @Test
+  public void testAppendRow() {
+    StringBuilder sb = new StringBuilder();
+    SampleCopyLoader.appendRow(sb, "PA1", "27", null);
+    SampleCopyLoader.appendRow(sb, "PA2", "27", "NA");
+    assertEquals("PA1\t27\t\\N\nPA2\t27\tNA\n", sb.toString());
+  }
+
+  @Test
+  public void testAppendSample() {
+    Sample sample = new Sample();
+    sample.setSubjectId("PA00");
+    sample.setProject(100);
+    sample.setGender(Gender.MALE);
+    sample.setGenotyping(Value.Yes);
+    sample.setPhenotyping(Value.No);
+    sample.setAge(21d);
+
+    StringBuilder sb = new StringBuilder();
+    SampleCopyLoader.appendSample(sb, sample);
+    assertEquals("PA00\t1\t0\t100\t"+Gender.MALE.getId()+"\t\\N\t\\N\t\\N\t\\N\t\\N\t21.0\tf\n", sb.toString());
+  }
+}
@@ -0,0 +1,191 @@
+package org.pharmgkb;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.hibernate.Session;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+import org.pharmgkb.model.Sample;
+import org.pharmgkb.util.StreamingSheetReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that streaming the submission template gives the same subjects as reading it into a workbook
+ *
+ * @author Ryan Whaley
+ */
+public class SubjectIteratorTest {
+  private static final String sf_template = "ICPC_Submission_Template.xlsx";
+
+  @Test
+  public void testEmptyTemplate() throws Exception {
+    File template = new File(getClass().getResource(sf_template).toURI());
+    assertEquals(0, readSheet(template).size());
+    assertEquals(0, readStreaming(template).size());
+  }
+
+  @Test
+  public void testSharedStrings() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // XSSF writes every string cell to the shared strings table
+      File file = new File(dir, "shared.xlsx");
+      try (InputStream in = getClass().getResourceAsStream(sf_template)) {
+        XSSFWorkbook workbook = new XSSFWorkbook(in);
+        Sheet sheet = workbook.getSheet(CombinedDataReport.DATA_SHEET_NAME);
+        writeSubjects(workbook, sheet, getColumns(sheet));
+        try (OutputStream out = new FileOutputStream(file)) {
+          workbook.write(out);
+        }
+      }
+      assertSameSubjects(file);
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void testInlineStrings() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // SXSSF writes new string cells inline, the header rows from the template stay in the shared strings table
+      File file = new File(dir, "inline.xlsx");
+      try (InputStream in = getClass().getResourceAsStream(sf_template)) {
+        XSSFWorkbook template = new XSSFWorkbook(in);
+        Sheet templateSheet = template.getSheet(CombinedDataReport.DATA_SHEET_NAME);
+        Map<Property,Integer> columns = getColumns(templateSheet);
+        for (int i = templateSheet.getLastRowNum(); i > 2; i--) {
+          if (templateSheet.getRow(i) != null) {
+            templateSheet.removeRow(templateSheet.getRow(i));
+          }
+        }
+        SXSSFWorkbook workbook = new SXSSFWorkbook(template);
+        writeSubjects(workbook, workbook.getSheet(CombinedDataReport.DATA_SHEET_NAME), columns);
+        try (OutputStream out = new FileOutputStream(file)) {
+          workbook.write(out);
+        }
+        workbook.dispose();
+      }
+      assertSameSubjects(file);
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * Reads the file both ways and checks they parse the same subjects with the values that were written
+   */
+  private void assertSameSubjects(File file) throws Exception {
+    List<Map<Property,String>> sheetSubjects = readSheet(file);
+    List<Map<Property,String>> streamedSubjects = readStreaming(file);
+    assertEquals(2, sheetSubjects.size());
+    assertEquals(sheetSubjects, streamedSubjects);
+
+    Map<Property,String> first = streamedSubjects.get(0);
+    assertEquals("PA1", first.get(Property.SUBJECT_ID));
+    assertEquals("1", first.get(Property.PROJECT));
+    assertEquals("65", first.get(Property.AGE));
+    assertEquals("27.5", first.get(Property.BMI));
+    assertEquals("PA2", streamedSubjects.get(1).get(Property.SUBJECT_ID));
+    assertEquals("70.5", streamedSubjects.get(1).get(Property.AGE));
+    assertEquals("31.25", streamedSubjects.get(1).get(Property.BMI));
+  }
+
+  /**
+   * Writes two subjects under the template header. BMI is shown with a number format that shouldn't change the value
+   * that's read.
+   */
+  private static void writeSubjects(Workbook workbook, Sheet sheet, Map<Property,Integer> columns) {
+    CellStyle twoPlaces = workbook.createCellStyle();
+    twoPlaces.setDataFormat(workbook.createDataFormat().getFormat("0.00"));
+
+    Object[][] subjects = {{"PA1", 1d, 65d, 27.5}, {"PA2", 1d, 70.5, 31.25}};
+    for (int i = 0; i < subjects.length; i++) {
+      Row row = sheet.createRow(3 + i);
+      row.createCell(columns.get(Property.SUBJECT_ID)).setCellValue((String)subjects[i][0]);
+      row.createCell(columns.get(Property.PROJECT)).setCellValue((Double)subjects[i][1]);
+      row.createCell(columns.get(Property.AGE)).setCellValue((Double)subjects[i][2]);
+      Cell bmi = row.createCell(columns.get(Property.BMI));
+      bmi.setCellValue((Double)subjects[i][3]);
+      bmi.setCellStyle(twoPlaces);
+    }
+  }
+
+  /**
+   * Finds the columns of the properties in the template header
+   */
+  private static Map<Property,Integer> getColumns(Sheet sheet) {
+    Map<Property,Integer> columns = Maps.newHashMap();
+    for (Cell cell : sheet.getRow(1)) {
+      Property property = Property.lookupByName(cell.getStringCellValue().trim());
+      if (property != null) {
+        columns.put(property, cell.getColumnIndex());
+      }
+    }
+    assertTrue(columns.keySet().containsAll(
+        EnumSet.of(Property.SUBJECT_ID, Property.PROJECT, Property.AGE, Property.BMI)));
+    return columns;
+  }
+
+  private static List<Map<Property,String>> readSheet(File file) throws Exception {
+    try (InputStream in = new FileInputStream(file)) {
+      Sheet sheet = new XSSFWorkbook(in).getSheet(CombinedDataReport.DATA_SHEET_NAME);
+      return readSubjects(new SubjectIterator(sheet));
+    }
+  }
+
+  private static List<Map<Property,String>> readStreaming(File file) throws Exception {
+    try (StreamingSheetReader reader = new StreamingSheetReader(file, CombinedDataReport.DATA_SHEET_NAME)) {
+      return readSubjects(new SubjectIterator(reader));
+    }
+  }
+
+  private static List<Map<Property,String>> readSubjects(SubjectIterator iterator) throws Exception {
+    iterator.parseHeading(makeSession());
+    List<Map<Property,String>> subjects = Lists.newArrayList();
+    while (iterator.hasNext()) {
+      Sample sample = iterator.next();
+      subjects.add(Maps.newHashMap(sample.getProperties()));
+    }
+    return subjects;
+  }
+
+  private static Session makeSession() {
+    return (Session)Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class},
+        (proxy, method, args) -> {
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,56 @@
+package org.pharmgkb.model;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the property map collection type without a session
+ *
+ * @author Ryan Whaley
+ */
+public class PropertyMapTypeTest {
+
+  @Test
+  public void testRoundTrip() {
+    PropertyMapType type = new PropertyMapType();
+    String cgs = "1";
+    Map<Property,String> original = Maps.newHashMap();
+    original.put(Property.SUBJECT_ID, "PA1");
+    original.put(Property.CGS, cgs);
+
+    Object instance = type.instantiate(original.size());
+    assertTrue(instance instanceof EnumMap);
+    assertSame(instance, type.replaceElements(original, instance, null, null, null, null));
+    assertEquals(original, instance);
+
+    PropertyMapType.PersistentPropertyMap wrapped =
+        (PropertyMapType.PersistentPropertyMap)type.wrap(null, original);
+    assertEquals(original, wrapped);
+    assertEquals(Property.CGS, type.indexOf(wrapped, cgs));
+    assertNull(type.indexOf(wrapped, "not a value"));
+    assertTrue(type.contains(wrapped, cgs));
+    assertFalse(type.contains(wrapped, "not a value"));
+    assertEquals(Lists.newArrayList("PA1", cgs), Lists.newArrayList(type.getElementsIterator(instance)));
+
+    // the snapshot is an EnumMap copy that doesn't change with the map
+    Object snapshot = wrapped.getSnapshot(null);
+    assertTrue(snapshot instanceof EnumMap);
+    assertEquals(original, snapshot);
+    @SuppressWarnings("unchecked") // PersistentMap is a raw Map
+    Map<Property,String> wrappedMap = wrapped;
+    wrappedMap.put(Property.CGS, "0");
+    assertEquals("0", wrappedMap.get(Property.CGS));
+    assertEquals(cgs, ((Map<?,?>)snapshot).get(Property.CGS));
+  }
+}
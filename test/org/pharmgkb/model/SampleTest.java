@@ -9,8 +9,11 @@ import org.pharmgkb.enums.Property;
 import org.pharmgkb.enums.Value;
 import org.pharmgkb.util.HibernateUtils;
 
+import java.util.EnumSet;
+
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Ryan Whaley
@@ -63,6 +66,21 @@ public class SampleTest {
     HibernateUtils.commit(session);
   }
 
+  @Test
+  public void testChangedProperties() {
+    Sample sample = new Sample();
+    sample.addProperty(Property.CGS, Value.Yes.getShortName());
+    assertEquals(EnumSet.of(Property.CGS), sample.getChangedProperties());
+
+    sample.clearChangedProperties();
+    sample.addProperty(Property.CGS, Value.Yes.getShortName());
+    assertTrue(sample.getChangedProperties().isEmpty());
+
+    sample.addProperty(Property.CGS, null);
+    assertEquals(EnumSet.of(Property.CGS), sample.getChangedProperties());
+    assertTrue(!sample.getProperties().containsKey(Property.CGS));
+  }
+
   @After
   public void after() {
     HibernateUtils.close(session);
@@ -1,5 +1,8 @@
 package org.pharmgkb.util;
 
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assume;
 import org.junit.Test;
 import org.pharmgkb.enums.Property;
 import org.pharmgkb.enums.SampleSource;
@@ -7,10 +10,13 @@ import org.pharmgkb.enums.Value;
 import org.pharmgkb.exception.PgkbException;
 import org.pharmgkb.model.Sample;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 
@@ -48,6 +54,58 @@ public class IcpcUtilsTest {
     assertFalse(IcpcUtils.isBlank("/"));
   }
 
+  /**
+   * isBlank should give the same answer as lower-casing and trimming the String and looking it up in the blank words
+   */
+  @Test
+  public void testIsBlankSameAsLowerCase() {
+    List<String> values = Lists.newArrayList("", " ", "\t\n", "\u2003", " \u2003 ", "\u00a0", "99", " 99 ", "099",
+        "9", "NA", "nA", " Na\t", "N/A", "n/a ", "NAN", "N A", "UNKNOWN", "Unknown", "unknowns", "UNKNOWn", "not known",
+        "Not  Known", "not\tknown", "UNAVAILABLE", "Unavailable", "unavaİlable", "NOT AVAILABLE", "not determined",
+        "Not Determined.", "\u212aNOWN", "un\u212anown", "yes", "0", "1", "A/G", "12.5", "Ña");
+    for (String word : IcpcUtils.getBlankWords()) {
+      values.add(word);
+      values.add(word.toUpperCase());
+      values.add("\u0000" + word + "\r\n");
+      values.add(word.substring(1));
+      values.add(word + "x");
+    }
+
+    for (String value : values) {
+      String trimString = StringUtils.trimToNull(StringUtils.lowerCase(value));
+      boolean expected = StringUtils.isBlank(trimString) || IcpcUtils.getBlankWords().contains(trimString);
+      assertEquals("isBlank(\"" + value + "\")", expected, IcpcUtils.isBlank(value));
+    }
+  }
+
+  /**
+   * isBlank is called for every cell that's parsed or reported on, so it shouldn't make any garbage
+   */
+  @Test
+  public void testIsBlankAllocation() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+    Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+    String[] values = {"NA", " n/a ", "Unknown", "not available", "12.5", "A/G", "yes", "  ", "99", "Not Determined"};
+    long threadId = Thread.currentThread().getId();
+    int blankCount = 0;
+    for (int i = 0; i < 100000; i++) {
+      blankCount += IcpcUtils.isBlank(values[i % values.length]) ? 1 : 0;
+    }
+
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 1000000; i++) {
+      blankCount += IcpcUtils.isBlank(values[i % values.length]) ? 1 : 0;
+    }
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+    assertEquals(770000, blankCount);
+    // leave room for the allocation counter itself, the old version made tens of megabytes of Strings here
+    assertTrue("isBlank allocated " + allocated + " bytes", allocated < 1024);
+  }
+
   @Test
   public void testCalculateBmi() throws PgkbException {
     Sample sample = new Sample();
@@ -88,6 +146,44 @@ public class IcpcUtilsTest {
     assertTrue(IcpcUtils.validateNumberFloor("NA",   1000d));
     assertTrue(IcpcUtils.validateNumberFloor("",     1000d));
     assertTrue(IcpcUtils.validateNumberFloor(null,   1000d));
+
+    assertFalse(IcpcUtils.validateNumberFloor(14d, 1000d));
+    assertTrue(IcpcUtils.validateNumberFloor(1200d, 1000d));
+    assertTrue(IcpcUtils.validateNumberFloor(Double.NaN, 1000d));
+  }
+
+  @Test
+  public void testGetNumber() {
+    Sample sample = new Sample();
+    assertTrue(Double.isNaN(sample.getNumber(Property.WEIGHT)));
+
+    sample.addProperty(Property.WEIGHT, "70");
+    sample.addProperty(Property.HEIGHT, IcpcUtils.NA);
+    assertEquals(70d, sample.getNumber(Property.WEIGHT), 0d);
+    assertTrue(Double.isNaN(sample.getNumber(Property.HEIGHT)));
+
+    sample.setNumber(Property.WEIGHT, 72.5d);
+    assertEquals("72.5", sample.getProperties().get(Property.WEIGHT));
+    assertEquals(72.5d, sample.getNumber(Property.WEIGHT), 0d);
+
+    sample.setNumber(Property.WEIGHT, Double.NaN);
+    assertEquals(IcpcUtils.NA, sample.getProperties().get(Property.WEIGHT));
+
+    // bad values are still stored but can't be read as numbers
+    sample.addProperty(Property.WEIGHT, "heavy");
+    assertEquals("heavy", sample.getProperties().get(Property.WEIGHT));
+    try {
+      sample.getNumber(Property.WEIGHT);
+      fail("Should not parse a bad number");
+    }
+    catch (NumberFormatException ex) {
+      // expected
+    }
+
+    // values that didn't go through addProperty, like the ones Hibernate loads, are parsed when they're read
+    sample.addProperty(Property.WEIGHT, "70");
+    sample.getProperties().put(Property.WEIGHT, "80");
+    assertEquals(80d, sample.getNumber(Property.WEIGHT), 0d);
   }
   
   @Test
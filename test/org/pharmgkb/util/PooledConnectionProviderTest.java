@@ -0,0 +1,270 @@
+package org.pharmgkb.util;
+
+import com.google.common.collect.Maps;
+import org.hibernate.cfg.AvailableSettings;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the connection pool against a stub JDBC driver that doesn't need a DB
+ *
+ * @author Ryan Whaley
+ */
+public class PooledConnectionProviderTest {
+  private static final String sf_url = "jdbc:icpcstub:test";
+  private static final StubDriver sf_driver = new StubDriver();
+
+  @BeforeClass
+  public static void registerDriver() throws SQLException {
+    DriverManager.registerDriver(sf_driver);
+  }
+
+  @AfterClass
+  public static void deregisterDriver() throws SQLException {
+    DriverManager.deregisterDriver(sf_driver);
+  }
+
+  @Test
+  public void testCounts() throws SQLException {
+    PooledConnectionProvider pool = makePool(2, 1000);
+    try {
+      int opened = sf_driver.m_opened.get();
+      Connection first = pool.getConnection();
+      Connection second = pool.getConnection();
+      assertEquals(2, pool.getActiveConnections());
+      assertEquals(0, pool.getIdleConnections());
+
+      pool.closeConnection(first);
+      assertEquals(1, pool.getActiveConnections());
+      assertEquals(1, pool.getIdleConnections());
+
+      // the idle connection is reused instead of opening a new one
+      assertSame(first, pool.getConnection());
+      assertEquals(2, pool.getActiveConnections());
+      assertEquals(0, pool.getIdleConnections());
+      assertEquals(opened + 2, sf_driver.m_opened.get());
+      assertEquals(3, pool.getAcquireCount());
+
+      pool.closeConnection(first);
+      pool.closeConnection(second);
+      assertEquals(0, pool.getActiveConnections());
+      assertEquals(2, pool.getIdleConnections());
+    }
+    finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void testAcquireTimeout() throws SQLException {
+    PooledConnectionProvider pool = makePool(1, 100);
+    try {
+      Connection connection = pool.getConnection();
+      long start = System.nanoTime();
+      try {
+        pool.getConnection();
+        fail("Should have timed out");
+      }
+      catch (SQLException ex) {
+        assertTrue(ex.getMessage(), ex.getMessage().startsWith("Timed out"));
+      }
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+      assertEquals(0, pool.getWaitingThreads());
+      assertEquals(1, pool.getActiveConnections());
+
+      pool.closeConnection(connection);
+      assertSame(connection, pool.getConnection());
+      pool.closeConnection(connection);
+    }
+    finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void testWaiting() throws Exception {
+    PooledConnectionProvider pool = makePool(1, 10_000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Connection connection = pool.getConnection();
+      Future<Connection> waiter = executor.submit(pool::getConnection);
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (pool.getWaitingThreads() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, pool.getWaitingThreads());
+
+      pool.closeConnection(connection);
+      assertSame(connection, waiter.get(5, TimeUnit.SECONDS));
+      assertEquals(0, pool.getWaitingThreads());
+      assertEquals(1, pool.getActiveConnections());
+      pool.closeConnection(connection);
+    }
+    finally {
+      executor.shutdownNow();
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void testFailedOpenReleasesPermit() throws SQLException {
+    PooledConnectionProvider pool = makePool(1, 100);
+    try {
+      sf_driver.m_fail = true;
+      try {
+        pool.getConnection();
+        fail("Should have failed to open a connection");
+      }
+      catch (SQLException ex) {
+        assertEquals("Stub driver failure", ex.getMessage());
+      }
+      finally {
+        sf_driver.m_fail = false;
+      }
+      assertEquals(0, pool.getActiveConnections());
+
+      // the only permit was given back so this doesn't time out
+      Connection connection = pool.getConnection();
+      assertEquals(1, pool.getActiveConnections());
+      pool.closeConnection(connection);
+    }
+    finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void testStop() throws SQLException {
+    PooledConnectionProvider pool = makePool(2, 100);
+    Connection idle = pool.getConnection();
+    Connection active = pool.getConnection();
+    pool.closeConnection(idle);
+    pool.stop();
+    assertTrue(idle.isClosed());
+    assertFalse(active.isClosed());
+
+    // a connection returned after the pool stopped is closed instead of going back in the pool
+    pool.closeConnection(active);
+    assertTrue(active.isClosed());
+    assertEquals(0, pool.getIdleConnections());
+    assertEquals(0, pool.getActiveConnections());
+
+    try {
+      pool.getConnection();
+      fail("Should not check out connections after stopping");
+    }
+    catch (SQLException ex) {
+      assertEquals("Connection pool has been stopped", ex.getMessage());
+    }
+  }
+
+  private static PooledConnectionProvider makePool(int maxSize, int acquireTimeout) {
+    Map<String,String> config = Maps.newHashMap();
+    config.put(AvailableSettings.URL, sf_url);
+    config.put(PooledConnectionProvider.MAX_SIZE, String.valueOf(maxSize));
+    config.put(PooledConnectionProvider.ACQUIRE_TIMEOUT, String.valueOf(acquireTimeout));
+    PooledConnectionProvider pool = new PooledConnectionProvider();
+    pool.configure(config);
+    return pool;
+  }
+
+  /**
+   * A driver for {@link #sf_url} that opens connections that only track whether they're closed and their auto-commit
+   * setting
+   */
+  private static class StubDriver implements Driver {
+    private final AtomicInteger m_opened = new AtomicInteger();
+    private volatile boolean m_fail = false;
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+      if (!acceptsURL(url)) {
+        return null;
+      }
+      if (m_fail) {
+        throw new SQLException("Stub driver failure");
+      }
+      m_opened.incrementAndGet();
+      boolean[] closed = {false};
+      boolean[] autoCommit = {true};
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "close":
+                closed[0] = true;
+                return null;
+              case "isClosed":
+                return closed[0];
+              case "isValid":
+                return !closed[0];
+              case "getAutoCommit":
+                return autoCommit[0];
+              case "setAutoCommit":
+                autoCommit[0] = (Boolean)args[0];
+                return null;
+              case "clearWarnings":
+                return null;
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              case "equals":
+                return proxy == args[0];
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          });
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+      return url != null && url.startsWith("jdbc:icpcstub:");
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+}
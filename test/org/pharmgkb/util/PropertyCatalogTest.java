@@ -0,0 +1,40 @@
+package org.pharmgkb.util;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.pharmgkb.enums.Property;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test writing and reading the PropertyCatalog cache file
+ *
+ * @author Ryan Whaley
+ */
+public class PropertyCatalogTest {
+
+  @Test
+  public void testCacheRoundTrip() throws Exception {
+    Map<Property,PropertyCatalog.Entry> entries = Maps.newHashMap();
+    entries.put(Property.AGE, new PropertyCatalog.Entry("Age at Time of Consent", "number", "age reported in years = NA "));
+    entries.put(Property.BMI, new PropertyCatalog.Entry("BMI", "number", null));
+    PropertyCatalog catalog = new PropertyCatalog(entries);
+
+    File file = File.createTempFile("propertyCatalog", ".properties");
+    file.deleteOnExit();
+    catalog.writeTo(file);
+
+    PropertyCatalog cached = PropertyCatalog.readFrom(file);
+    assertEquals(2, cached.size());
+    assertEquals("Age at Time of Consent", cached.getDescription(Property.AGE));
+    assertEquals("number", cached.getDatatype(Property.AGE));
+    assertEquals("age reported in years = NA ", cached.getFormat(Property.AGE));
+    assertEquals("BMI", cached.getDescription(Property.BMI));
+    assertNull(cached.getFormat(Property.BMI));
+    assertNull(cached.getFormat(Property.HEIGHT));
+  }
+}
@@ -0,0 +1,92 @@
+package org.pharmgkb.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pharmgkb.exception.PgkbException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the ordering and failure handling in StageScheduler
+ *
+ * @author Ryan Whaley
+ */
+public class StageSchedulerTest {
+
+  @Test
+  public void testOrder() throws Exception {
+    List<String> ran = Collections.synchronizedList(Lists.newArrayList());
+
+    new StageScheduler()
+        .add("report", ImmutableList.of("applied"), ImmutableList.of(), () -> ran.add("report"))
+        .add("apply", ImmutableList.of("samples", "file"), ImmutableList.of("applied"), () -> ran.add("apply"))
+        .add("read", ImmutableList.of(), ImmutableList.of("file"), () -> ran.add("read"))
+        .add("load", ImmutableList.of(), ImmutableList.of("samples"), () -> ran.add("load"))
+        .run(4);
+
+    assertEquals(4, ran.size());
+    assertTrue(ran.indexOf("apply") > ran.indexOf("read"));
+    assertTrue(ran.indexOf("apply") > ran.indexOf("load"));
+    assertEquals("report", ran.get(3));
+  }
+
+  @Test
+  public void testIndependentStagesRunTogether() throws Exception {
+    // each stage waits for the other to start, so this only finishes if they run at the same time
+    CountDownLatch started = new CountDownLatch(2);
+    StageScheduler.Stage stage = () -> {
+      started.countDown();
+      if (!started.await(10, TimeUnit.SECONDS)) {
+        throw new Exception("Other stage didn't start");
+      }
+    };
+
+    new StageScheduler()
+        .add("load", ImmutableList.of(), ImmutableList.of("samples"), stage)
+        .add("read", ImmutableList.of(), ImmutableList.of("file"), stage)
+        .run(2);
+  }
+
+  @Test
+  public void testFailureSkipsDependents() {
+    List<String> ran = Collections.synchronizedList(Lists.newArrayList());
+
+    try {
+      new StageScheduler()
+          .add("load", ImmutableList.of(), ImmutableList.of("samples"), () -> {
+            throw new Exception("bad template");
+          })
+          .add("read", ImmutableList.of(), ImmutableList.of("file"), () -> ran.add("read"))
+          .add("apply", ImmutableList.of("samples", "file"), ImmutableList.of(), () -> ran.add("apply"))
+          .run(2);
+      fail("Should have failed");
+    }
+    catch (PgkbException ex) {
+      assertTrue(ex.getMessage().contains("Stages failed: [load], skipped: [apply]"));
+    }
+    assertEquals(ImmutableList.of("read"), ran);
+  }
+
+  @Test(expected = PgkbException.class)
+  public void testMissingResource() throws Exception {
+    new StageScheduler()
+        .add("apply", ImmutableList.of("samples"), ImmutableList.of(), () -> {})
+        .run(1);
+  }
+
+  @Test(expected = PgkbException.class)
+  public void testCycle() throws Exception {
+    new StageScheduler()
+        .add("a", ImmutableList.of("b"), ImmutableList.of("a"), () -> {})
+        .add("b", ImmutableList.of("a"), ImmutableList.of("b"), () -> {})
+        .run(1);
+  }
+}